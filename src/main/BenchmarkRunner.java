@@ -0,0 +1,186 @@
+package main;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+//Luis Mauboy - 1684115
+//Small throughput harness in the spirit of JMH: warmup iterations, timed
+//measurement iterations and a JSON report that can be diffed between builds.
+//Like JMH's gc profiler it also reports bytes allocated per operation, read
+//from the benchmark thread's allocation counter where the JVM keeps one.
+public class BenchmarkRunner {
+    //Sink for benchmark results so the JIT cannot drop the measured work
+    public static volatile Object blackhole;
+
+    public interface Workload {
+        Object run() throws Exception;
+    }
+
+    public static class Result {
+        public final String name;
+        public final Map<String, String> params;
+        public final double[] scores; //ops/s per measurement iteration
+        public final double[] allocations; //Bytes allocated per op per measurement iteration, empty if unknown
+
+        Result(String name, Map<String, String> params, double[] scores, double[] allocations) {
+            this.name = name;
+            this.params = params;
+            this.scores = scores;
+            this.allocations = allocations;
+        }
+
+        public double allocationMean() {
+            double sum = 0;
+            for (double a : allocations) sum += a;
+            return allocations.length == 0 ? 0 : sum / allocations.length;
+        }
+
+        public double mean() {
+            double sum = 0;
+            for (double s : scores) sum += s;
+            return scores.length == 0 ? 0 : sum / scores.length;
+        }
+
+        public double error() {
+            if (scores.length < 2) return 0;
+            double mean = mean();
+            double sq = 0;
+            for (double s : scores) sq += (s - mean) * (s - mean);
+            //99.9% confidence half-width using a normal approximation
+            return 3.29 * Math.sqrt(sq / (scores.length - 1)) / Math.sqrt(scores.length);
+        }
+    }
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationMillis;
+    private final String filter;
+    private final List<Result> results = new ArrayList<>();
+    private final com.sun.management.ThreadMXBean threads = allocationCounter();
+    private double lastAllocation; //Bytes per op in the last iteration, -1 if unknown
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis, String filter) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationMillis = iterationMillis;
+        this.filter = filter;
+    }
+
+    public boolean isSelected(String name) {
+        return filter == null || name.contains(filter);
+    }
+
+    //Runs a workload and records its throughput in operations per second
+    public Result run(String name, Map<String, String> params, Workload workload) throws Exception {
+        if (!isSelected(name)) return null;
+        System.out.println("# Benchmark: " + name + " " + params);
+
+        for (int i = 0; i < warmupIterations; i++) {
+            System.out.printf("# Warmup %d: %.3f ops/s%s%n", i + 1, iteration(workload), allocation());
+        }
+        double[] scores = new double[measurementIterations];
+        double[] allocations = new double[threads != null ? measurementIterations : 0];
+        for (int i = 0; i < measurementIterations; i++) {
+            scores[i] = iteration(workload);
+            if (threads != null) allocations[i] = lastAllocation;
+            System.out.printf("Iteration %d: %.3f ops/s%s%n", i + 1, scores[i], allocation());
+        }
+
+        Result result = new Result(name, new LinkedHashMap<>(params), scores, allocations);
+        results.add(result);
+        System.out.printf("Result %s: %.3f +- %.3f ops/s%s%n%n", name, result.mean(), result.error(),
+                threads != null ? String.format(", %.1f B/op", result.allocationMean()) : "");
+        return result;
+    }
+
+    private double iteration(Workload workload) throws Exception {
+        long allocatedBefore = allocatedBytes();
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000L;
+        long start = System.nanoTime();
+        long ops = 0;
+        long now;
+        do {
+            blackhole = workload.run();
+            ops++;
+            now = System.nanoTime();
+        } while (now < deadline);
+        lastAllocation = threads != null ? (double) (allocatedBytes() - allocatedBefore) / ops : -1;
+        return ops * 1e9 / (now - start);
+    }
+
+    private String allocation() {
+        return lastAllocation >= 0 ? String.format(", %.1f B/op", lastAllocation) : "";
+    }
+
+    private long allocatedBytes() {
+        return threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    //HotSpot's per-thread allocation counter, or null on JVMs without one
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) return null;
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    //Writes results in the same layout as JMH's -rf json output
+    public void writeJson(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result r = results.get(i);
+                out.println("    {");
+                out.println("        \"benchmark\" : " + quote(r.name) + ",");
+                out.println("        \"mode\" : \"thrpt\",");
+                out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+                out.println("        \"measurementIterations\" : " + measurementIterations + ",");
+                out.println("        \"measurementTime\" : \"" + iterationMillis + " ms\",");
+                out.print("        \"params\" : {");
+                int p = 0;
+                for (Map.Entry<String, String> e : r.params.entrySet()) {
+                    out.print((p++ > 0 ? ", " : " ") + quote(e.getKey()) + " : " + quote(e.getValue()));
+                }
+                out.println(p > 0 ? " }," : "},");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + r.mean() + ",");
+                out.println("            \"scoreError\" : " + r.error() + ",");
+                out.println("            \"scoreUnit\" : \"ops/s\",");
+                StringBuilder raw = new StringBuilder();
+                for (int s = 0; s < r.scores.length; s++) {
+                    raw.append(s > 0 ? ", " : "").append(r.scores[s]);
+                }
+                out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+                if (r.allocations.length == 0) {
+                    out.println("        }");
+                } else {
+                    //Named as JMH's -prof gc names it, so the same tooling reads both
+                    StringBuilder rawAllocations = new StringBuilder();
+                    for (int a = 0; a < r.allocations.length; a++) {
+                        rawAllocations.append(a > 0 ? ", " : "").append(r.allocations[a]);
+                    }
+                    out.println("        },");
+                    out.println("        \"secondaryMetrics\" : {");
+                    out.println("            \"\u00b7gc.alloc.rate.norm\" : {");
+                    out.println("                \"score\" : " + r.allocationMean() + ",");
+                    out.println("                \"scoreUnit\" : \"B/op\",");
+                    out.println("                \"rawData\" : [ [ " + rawAllocations + " ] ]");
+                    out.println("            }");
+                    out.println("        }");
+                }
+                out.println(i < results.size() - 1 ? "    }," : "    }");
+            }
+            out.println("]");
+        }
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
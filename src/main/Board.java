@@ -0,0 +1,84 @@
+package main;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+//Luis Mauboy - 1684115
+//One named board hosted by the server: its shapes, chat, users and joined
+//clients. Changed only on the server's board thread. The shapes and chat are
+//what survives hibernation; users and clients exist only while it is loaded.
+public class Board {
+    static final int CHAT_HISTORY_CAPACITY = 1000;
+    private static final String HEADER = "board-v2";
+    private static final String HEADER_V1 = "board-v1"; //Chat lines by writeUTF, which fails past 64 KB
+    private static final int SHAPE_BYTES = 300;  //Rough heap cost of one shape and its grid entries, for the memory budget
+    private static final int CHAT_LINE_BYTES = 100;
+
+    final String name;
+    final ShapeStore shapes = new ShapeStore(true); //Spatially indexed for viewport filtering
+    final ChatHistory chat = new ChatHistory(CHAT_HISTORY_CAPACITY);
+    final StrokeCompactor strokes = new StrokeCompactor();
+    final UserManager users = new UserManager();
+    //Joined clients, iterated without locks
+    final List<WhiteboardServer.ClientHandler> clients = new CopyOnWriteArrayList<>();
+    List<WhiteboardServer.ClientHandler> joinBatch = new ArrayList<>();
+    String manager;
+    BoardHistory history;   //Null unless the server records history
+    long lastActive = System.currentTimeMillis();
+    boolean hibernating;    //Being written to disk; stays loaded until the write succeeds
+
+    Board(String name) {
+        this.name = name;
+    }
+
+    boolean isIdle() {
+        return clients.isEmpty() && joinBatch.isEmpty();
+    }
+
+    //Heap estimate used by the registry's memory budget
+    long estimatedBytes() {
+        return (long) shapes.size() * SHAPE_BYTES + (long) CHAT_HISTORY_CAPACITY * CHAT_LINE_BYTES;
+    }
+
+    //Hibernated form: header, chat lines, then the shapes as BoardFile.encode bytes
+    static void write(File file, ShapeStore.Snapshot shapes, ServerMessage.ChatPage chat) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        byte[] encoded = BoardFile.encode(shapes);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            out.writeUTF(HEADER);
+            out.writeLong(chat.firstSeq);
+            out.writeInt(chat.messages.size());
+            for (String line : chat.messages) {
+                BoardHistory.writeText(out, line);
+            }
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    static Board read(String name, File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            String header = in.readUTF();
+            if (!HEADER.equals(header) && !HEADER_V1.equals(header)) {
+                throw new InvalidObjectException("Not a hibernated board");
+            }
+            long firstSeq = in.readLong();
+            int lines = in.readInt();
+            List<String> messages = new ArrayList<>(lines);
+            for (int i = 0; i < lines; i++) {
+                messages.add(HEADER.equals(header) ? BoardHistory.readText(in) : in.readUTF());
+            }
+            Board board = new Board(name);
+            board.chat.restore(new ServerMessage.ChatPage(messages, firstSeq, false));
+            board.shapes.replaceAll(BoardFile.decode(in.readNBytes(in.readInt())));
+            return board;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package main;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+//Luis Mauboy - 1684115
+//Renders a board to PNG at any resolution without holding the whole image.
+//The image is cut into bands of rows; each band is drawn as tiles in
+//parallel (ShapeRenderer into small off-screen images), filtered and
+//deflated on the fork-join pool, and written in order as its own IDAT
+//chunk, so memory stays at a few bands however large the output is.
+//
+//  java -cp bin main.BoardExporter <board file> <out.png> [-scale 1] [-region x,y,w,h] [-threads n]
+public class BoardExporter {
+    private static final int TILE_WIDTH = 512;
+    private static final int BAND_PIXELS = 1 << 20;  //Pixels per band, bounds memory per task
+    private static final int TEXT_SLACK = 8;         //Text bounds are only estimated
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final ForkJoinPool pool;
+
+    //One deflated band, ready to be appended to the zlib stream
+    private static class Band {
+        final byte[] compressed;
+        final long adler;
+        final int rawLength;
+
+        Band(byte[] compressed, long adler, int rawLength) {
+            this.compressed = compressed;
+            this.adler = adler;
+            this.rawLength = rawLength;
+        }
+    }
+
+    public BoardExporter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    //Smallest rectangle holding every shape, or an empty 1x1 area
+    public static Rectangle boundsOf(Iterable<ShapeData> shapes) {
+        Rectangle bounds = null;
+        for (ShapeData shape : shapes) {
+            Rectangle b = shape.getBounds();
+            bounds = bounds == null ? b : bounds.union(b);
+        }
+        return bounds != null ? bounds : new Rectangle(0, 0, 1, 1);
+    }
+
+    //Writes region of the board, scaled, as a PNG to out
+    public void export(Iterable<ShapeData> shapes, Rectangle region, double scale, OutputStream out) throws IOException {
+        long w = (long) Math.ceil(region.width * scale);
+        long h = (long) Math.ceil(region.height * scale);
+        if (w <= 0 || h <= 0 || w > (Integer.MAX_VALUE - 1) / 3 || h > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Unsupported image size " + w + "x" + h);
+        }
+        int width = (int) w;
+        int height = (int) h;
+        int bandHeight = Math.max(1, Math.min(height, BAND_PIXELS / width));
+        int bandCount = (height + bandHeight - 1) / bandHeight;
+
+        //Bucket shapes by band once, in paint order: by layer, then drawing order
+        List<ShapeData> list = new ArrayList<>();
+        List<Rectangle> bounds = new ArrayList<>();
+        int[][] bandShapes = new int[bandCount][];
+        int[] bandSizes = new int[bandCount];
+        for (ShapeData shape : Layers.inPaintOrder(shapes)) {
+            Rectangle b = shape.getBounds();
+            if (shape.type == ToolType.TEXT) b.grow(TEXT_SLACK, TEXT_SLACK);
+            if (!b.intersects(region)) continue;
+            int first = Math.max(0, (int) ((b.y - region.y) * scale) / bandHeight);
+            int last = Math.min(bandCount - 1, (int) ((b.y + b.height - region.y) * scale) / bandHeight);
+            int index = list.size();
+            list.add(shape);
+            bounds.add(b);
+            for (int band = first; band <= last; band++) {
+                int[] bucket = bandShapes[band];
+                if (bucket == null) {
+                    bucket = bandShapes[band] = new int[16];
+                } else if (bandSizes[band] == bucket.length) {
+                    bucket = bandShapes[band] = Arrays.copyOf(bucket, bucket.length * 2);
+                }
+                bucket[bandSizes[band]++] = index;
+            }
+        }
+
+        DataOutputStream png = new DataOutputStream(out);
+        png.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream ihdr = new DataOutputStream(header);
+        ihdr.writeInt(width);
+        ihdr.writeInt(height);
+        ihdr.writeByte(8);  //Bit depth
+        ihdr.writeByte(2);  //Truecolor RGB
+        ihdr.writeByte(0);  //Deflate
+        ihdr.writeByte(0);  //Adaptive filtering
+        ihdr.writeByte(0);  //No interlace
+        writeChunk(png, "IHDR", header.toByteArray());
+        writeChunk(png, "IDAT", new byte[]{0x78, (byte) 0x9C}); //zlib header
+
+        //Keep a few bands in flight so rendering overlaps writing
+        int window = Math.max(2, pool.getParallelism() * 2);
+        Deque<ForkJoinTask<Band>> pending = new ArrayDeque<>();
+        long adler = 1;
+        for (int band = 0; band < bandCount; band++) {
+            int y = band * bandHeight;
+            int rows = Math.min(bandHeight, height - y);
+            int[] indices = bandShapes[band] != null ? bandShapes[band] : new int[0];
+            int size = bandSizes[band];
+            boolean last = band == bandCount - 1;
+            pending.add(pool.submit(() -> renderBand(list, bounds, indices, size, region, scale, width, y, rows, last)));
+            if (pending.size() >= window) {
+                adler = writeBand(png, pending.poll().join(), adler);
+            }
+        }
+        while (!pending.isEmpty()) {
+            adler = writeBand(png, pending.poll().join(), adler);
+        }
+        writeChunk(png, "IDAT", new byte[]{(byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler});
+        writeChunk(png, "IEND", new byte[0]);
+        png.flush();
+    }
+
+    private long writeBand(DataOutputStream png, Band band, long adler) throws IOException {
+        writeChunk(png, "IDAT", band.compressed);
+        return combineAdler(adler, band.adler, band.rawLength);
+    }
+
+    private static Band renderBand(List<ShapeData> shapes, List<Rectangle> bounds, int[] indices, int size,
+                                   Rectangle region, double scale, int width, int y, int rows, boolean last) {
+        int[] pixels = new int[width * rows];
+        List<ForkJoinTask<?>> tiles = new ArrayList<>();
+        for (int x = 0; x < width; x += TILE_WIDTH) {
+            int tileX = x;
+            int tileWidth = Math.min(TILE_WIDTH, width - x);
+            tiles.add(ForkJoinTask.adapt(() -> renderTile(shapes, bounds, indices, size, region, scale,
+                    pixels, width, tileX, y, tileWidth, rows)));
+        }
+        ForkJoinTask.invokeAll(tiles);
+
+        //Sub filter: flat whiteboard areas become runs of zeros
+        int stride = 1 + 3 * width;
+        byte[] raw = new byte[stride * rows];
+        for (int row = 0, pos = 0; row < rows; row++) {
+            raw[pos++] = 1;
+            int left = 0;
+            for (int x = 0, p = row * width; x < width; x++, p++) {
+                int rgb = pixels[p];
+                raw[pos++] = (byte) ((rgb >>> 16) - (left >>> 16));
+                raw[pos++] = (byte) ((rgb >>> 8) - (left >>> 8));
+                raw[pos++] = (byte) (rgb - left);
+                left = rgb;
+            }
+        }
+        Adler32 checksum = new Adler32();
+        checksum.update(raw);
+
+        //Independent raw deflate streams joined by sync flushes form one valid zlib body
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 8 + 64);
+        byte[] buffer = new byte[1 << 16];
+        deflater.setInput(raw);
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } else {
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, n);
+            } while (n == buffer.length);
+        }
+        deflater.end();
+        return new Band(compressed.toByteArray(), checksum.getValue(), raw.length);
+    }
+
+    private static void renderTile(List<ShapeData> shapes, List<Rectangle> bounds, int[] indices, int size,
+                                   Rectangle region, double scale, int[] pixels, int width,
+                                   int x, int y, int tileWidth, int rows) {
+        BufferedImage tile = new BufferedImage(tileWidth, rows, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, tileWidth, rows);
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(-x, -y);
+            g.scale(scale, scale);
+            g.translate(-region.x, -region.y);
+            //Tile area in board coordinates
+            Rectangle area = new Rectangle((int) Math.floor(region.x + x / scale), (int) Math.floor(region.y + y / scale),
+                    (int) Math.ceil(tileWidth / scale) + 1, (int) Math.ceil(rows / scale) + 1);
+            ShapeRenderer renderer = new ShapeRenderer(); //Tiles paint on several threads
+            renderer.begin(g);
+            for (int i = 0; i < size; i++) {
+                if (bounds.get(indices[i]).intersects(area)) {
+                    renderer.draw(shapes.get(indices[i]));
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        int[] data = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(data, row * tileWidth, pixels, row * width + x, tileWidth);
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    //Adler-32 of two concatenated inputs from their separate checksums (as zlib's adler32_combine)
+    private static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xFFFF) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= base << 1) sum2 -= base << 1;
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if (args.length < 2) {
+            System.err.println("Usage: BoardExporter <board file> <out.png> [-scale 1] [-region x,y,w,h] [-threads n]");
+            System.exit(1);
+        }
+        try {
+            double scale = 1;
+            Rectangle region = null;
+            int threads = Runtime.getRuntime().availableProcessors();
+            for (int i = 2; i + 1 < args.length; i += 2) {
+                switch (args[i]) {
+                    case "-scale" -> scale = Double.parseDouble(args[i + 1]);
+                    case "-region" -> {
+                        int[] r = Arrays.stream(args[i + 1].split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+                        region = new Rectangle(r[0], r[1], r[2], r[3]);
+                    }
+                    case "-threads" -> threads = Integer.parseInt(args[i + 1]);
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
+            List<ShapeData> shapes = BoardFile.read(new File(args[0]));
+            if (region == null) region = boundsOf(shapes);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            long begin = System.nanoTime();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16)) {
+                new BoardExporter(pool).export(shapes, region, scale, out);
+            }
+            double seconds = (System.nanoTime() - begin) / 1e9;
+            double pixels = Math.ceil(region.width * scale) * Math.ceil(region.height * scale);
+            System.out.printf("Exported %d shapes to %s (%.0fx%.0f) in %.2fs, %.1f Mpixel/s on %d threads%n",
+                    shapes.size(), args[1], Math.ceil(region.width * scale), Math.ceil(region.height * scale),
+                    seconds, pixels / seconds / 1e6, threads);
+            pool.shutdown();
+        } catch (Exception e) {
+            System.err.println("Export failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package main;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+//Luis Mauboy - 1684115
+//Whiteboard file format. Saves stream shapes one by one after a header so a
+//save can report progress and never needs the whole board as one list;
+//loading still accepts the older format (a single serialized List).
+//encode/decode give the compact deflated form joiners receive in one message.
+public final class BoardFile {
+    private static final String HEADER = "whiteboard-v1";
+    private static final int RESET_INTERVAL = 4096; //Bounds the stream's handle table
+
+    public interface Progress {
+        void update(int written, int total);
+    }
+
+    private BoardFile() {
+    }
+
+    //Writes via a temporary file and renames it, so a failed save never truncates the old one
+    public static void write(File file, ShapeStore.Snapshot shapes, Progress progress) throws IOException {
+        File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16))) {
+            int total = shapes.size();
+            out.writeObject(HEADER);
+            out.writeInt(total);
+            int written = 0;
+            int step = Math.max(1, total / 10);
+            for (ShapeData shape : shapes) {
+                out.writeObject(shape);
+                if (++written % RESET_INTERVAL == 0) {
+                    out.reset();
+                }
+                if (progress != null && written % step == 0 && written < total) {
+                    progress.update(written, total);
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static List<ShapeData> read(File file) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            Object first = in.readObject();
+            if (first instanceof List) {
+                return (List<ShapeData>) first; //Older single-list format
+            }
+            if (!HEADER.equals(first)) {
+                throw new InvalidObjectException("Not a whiteboard file");
+            }
+            int total = in.readInt();
+            List<ShapeData> shapes = new ArrayList<>(total);
+            for (int i = 0; i < total; i++) {
+                shapes.add((ShapeData) in.readObject());
+            }
+            return shapes;
+        }
+    }
+
+    //Encoded once per join batch and sent as is to every client in it
+    public static byte[] encode(ShapeStore.Snapshot shapes) throws IOException {
+        return encode(shapes, shapes.size());
+    }
+
+    //Part of a board, for a joiner that only watches a region
+    public static byte[] encode(List<ShapeData> shapes) throws IOException {
+        return encode(shapes, shapes.size());
+    }
+
+    private static byte[] encode(Iterable<ShapeData> shapes, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + count * 16);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(bytes, deflater), 1 << 16))) {
+            out.writeInt(count);
+            for (ShapeData shape : shapes) {
+                BoardHistory.writeShape(out, shape);
+            }
+        } finally {
+            deflater.end(); //Not owned by the stream, so close() leaves it open
+        }
+        return bytes.toByteArray();
+    }
+
+    public static List<ShapeData> decode(byte[] encoded) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(encoded)), 1 << 16))) {
+            int total = in.readInt();
+            List<ShapeData> shapes = new ArrayList<>(total);
+            for (int i = 0; i < total; i++) {
+                shapes.add(BoardHistory.readShape(in));
+            }
+            return shapes;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package main;
+
+import java.awt.Color;
+import java.awt.Point;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+//Luis Mauboy - 1684115
+//Persistent, timestamped log of every board operation plus periodic keyframes
+//(full snapshots). Seeking to a point in time loads the nearest earlier
+//keyframe and replays only the operations after it.
+//
+//  <dir>/ops.log          records: time, message type, payload length, payload
+//  <dir>/index.dat        keyframe entries: time, ops.log offset, file name
+//  <dir>/keyframe-N.wb    BoardFile snapshot of the board before ops.log offset N
+public class BoardHistory implements Closeable {
+    private static final int KEYFRAME_INTERVAL = 5000; //Operations between keyframes
+
+    private final File dir;
+    private final Executor io;
+    private final DataOutputStream ops;
+    private final DataOutputStream index;
+    private final List<Keyframe> keyframes = new ArrayList<>(); //Ordered by offset and time
+    private long offset;                                        //End of ops.log
+    private int opsSinceKeyframe = 0;
+
+    private static class Keyframe {
+        final long time;
+        final long offset;
+        final File file;
+
+        Keyframe(long time, long offset, File file) {
+            this.time = time;
+            this.offset = offset;
+            this.file = file;
+        }
+    }
+
+    //Board state at a point in time and where to continue reading ops.log
+    public static class Position {
+        public final List<ShapeData> shapes;
+        public final long offset;
+
+        Position(List<ShapeData> shapes, long offset) {
+            this.shapes = shapes;
+            this.offset = offset;
+        }
+    }
+
+    public interface OpConsumer {
+        //Return false to stop the replay
+        boolean accept(long time, ServerMessage op) throws IOException, InterruptedException;
+    }
+
+    public BoardHistory(File dir, Executor io) throws IOException {
+        this.dir = dir;
+        this.io = io;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create history directory " + dir);
+        }
+        File opsFile = new File(dir, "ops.log");
+        File indexFile = new File(dir, "index.dat");
+        loadIndex(indexFile);
+        offset = opsFile.length();
+        ops = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(opsFile, true), 1 << 16));
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    }
+
+    private void loadIndex(File indexFile) {
+        if (!indexFile.exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                long time = in.readLong();
+                long at = in.readLong();
+                File file = new File(dir, in.readUTF());
+                if (file.exists()) keyframes.add(new Keyframe(time, at, file));
+            }
+        } catch (EOFException e) {
+            //End of index
+        } catch (IOException e) {
+            System.err.println("History index damaged, ignoring the rest: " + e.getMessage());
+        }
+    }
+
+    //Appends an operation that has just been applied to board
+    public synchronized void record(ServerMessage op, ShapeStore board) {
+        long time = System.currentTimeMillis();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            writePayload(new DataOutputStream(bytes), op);
+            ops.writeLong(time);
+            ops.writeByte(opCode(op.getType()));
+            ops.writeInt(bytes.size());
+            bytes.writeTo(ops);
+            offset += 8 + 1 + 4 + bytes.size();
+        } catch (IOException e) {
+            System.err.println("History write failed: " + e.getMessage());
+            return;
+        }
+        //A replaced board is a natural keyframe, so replays never carry the big list
+        if (++opsSinceKeyframe >= KEYFRAME_INTERVAL || op.getType() == ServerMessage.MessageType.FILE_DATA) {
+            writeKeyframe(time, board.snapshot());
+        }
+    }
+
+    private void writeKeyframe(long time, ShapeStore.Snapshot snapshot) {
+        opsSinceKeyframe = 0;
+        long at = offset;
+        File file = new File(dir, "keyframe-" + at + ".wb");
+        io.execute(() -> {
+            try {
+                BoardFile.write(file, snapshot, null);
+                synchronized (this) {
+                    index.writeLong(time);
+                    index.writeLong(at);
+                    index.writeUTF(file.getName());
+                    index.flush();
+                    keyframes.add(new Keyframe(time, at, file));
+                    keyframes.sort(Comparator.comparingLong(k -> k.offset));
+                }
+            } catch (IOException e) {
+                System.err.println("Keyframe write failed: " + e.getMessage());
+            }
+        });
+    }
+
+    //Board as it was at time: one keyframe load plus a short replay
+    public Position stateAt(long time) throws IOException, ClassNotFoundException {
+        Keyframe start = null;
+        synchronized (this) {
+            ops.flush();
+            for (Keyframe k : keyframes) {
+                if (k.time > time) break;
+                start = k;
+            }
+        }
+        ShapeStore board = new ShapeStore();
+        if (start != null) {
+            board.replaceAll(BoardFile.read(start.file));
+        }
+        long[] end = {start != null ? start.offset : 0};
+        replay(end[0], Long.MIN_VALUE, time, (t, op) -> {
+            apply(board, op);
+            return true;
+        }, end);
+        return new Position(board.snapshot().toList(), end[0]);
+    }
+
+    //Feeds ops from fromOffset with from < time <= to to the consumer
+    public void replay(long fromOffset, long from, long to, OpConsumer consumer) throws IOException {
+        replay(fromOffset, from, to, consumer, null);
+    }
+
+    private void replay(long fromOffset, long from, long to, OpConsumer consumer, long[] endOffset) throws IOException {
+        long limit;
+        synchronized (this) {
+            ops.flush();
+            limit = offset;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(new File(dir, "ops.log")), 1 << 16))) {
+            in.skipNBytes(fromOffset);
+            long at = fromOffset;
+            while (at < limit) {
+                long time = in.readLong();
+                if (time > to) break;
+                ServerMessage.MessageType type = opType(in.readByte());
+                int length = in.readInt();
+                byte[] payload = in.readNBytes(length);
+                at += 8 + 1 + 4 + length;
+                if (endOffset != null) endOffset[0] = at;
+                if (time <= from) continue;
+                if (!consumer.accept(time, readPayload(type, time, new DataInputStream(new ByteArrayInputStream(payload))))) {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            //Partially written tail, e.g. after a crash
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Applies a recorded operation to a board
+    public static void apply(ShapeStore board, ServerMessage op) {
+        switch (op.getType()) {
+            case SHAPE -> board.add(op.getShape());
+            case DELETE_SHAPES -> board.delete(op.getShapeIds());
+            case RESTORE_SHAPES -> board.restore(op.getShapes(), false);
+            case CLEAR_CANVAS -> board.clear();
+            case LAYER_CLEAR -> board.deleteLayer(op.getLayer());
+            case FILE_DATA -> board.replaceAll(op.getShapes());
+            case MERGE_SHAPES -> board.merge(op.getMergedShapes().merged, op.getMergedShapes().removed);
+            default -> { }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        ops.close();
+        index.close();
+    }
+
+    //Stored codes are fixed here, not taken from ordinals, so reordering or extending the enums
+    //never changes what an existing ops.log or keyframe means. They match the ordinals older files used.
+    private static int opCode(ServerMessage.MessageType type) {
+        return switch (type) {
+            case SHAPE -> 0;
+            case CLEAR_CANVAS -> 1;
+            case DELETE_SHAPES -> 2;
+            case RESTORE_SHAPES -> 3;
+            case MERGE_SHAPES -> 4;
+            case LAYER_CLEAR -> 5;
+            case FILE_DATA -> 21;
+            default -> throw new IllegalArgumentException("Not a board operation: " + type);
+        };
+    }
+
+    private static ServerMessage.MessageType opType(int code) throws InvalidObjectException {
+        return switch (code) {
+            case 0 -> ServerMessage.MessageType.SHAPE;
+            case 1 -> ServerMessage.MessageType.CLEAR_CANVAS;
+            case 2 -> ServerMessage.MessageType.DELETE_SHAPES;
+            case 3 -> ServerMessage.MessageType.RESTORE_SHAPES;
+            case 4 -> ServerMessage.MessageType.MERGE_SHAPES;
+            case 5 -> ServerMessage.MessageType.LAYER_CLEAR;
+            case 21 -> ServerMessage.MessageType.FILE_DATA;
+            default -> throw new InvalidObjectException("Unknown operation code " + code);
+        };
+    }
+
+    private static int toolCode(ToolType type) {
+        return switch (type) {
+            case PENCIL -> 0;
+            case LINE -> 1;
+            case RECTANGLE -> 2;
+            case OVAL -> 3;
+            case TRIANGLE -> 4;
+            case TEXT -> 5;
+            case ERASER -> 6;
+        };
+    }
+
+    private static ToolType toolType(int code) throws InvalidObjectException {
+        return switch (code) {
+            case 0 -> ToolType.PENCIL;
+            case 1 -> ToolType.LINE;
+            case 2 -> ToolType.RECTANGLE;
+            case 3 -> ToolType.OVAL;
+            case 4 -> ToolType.TRIANGLE;
+            case 5 -> ToolType.TEXT;
+            case 6 -> ToolType.ERASER;
+            default -> throw new InvalidObjectException("Unknown tool code " + code);
+        };
+    }
+
+    //Compact binary encoding of the drawing operations
+    private static void writePayload(DataOutputStream out, ServerMessage op) throws IOException {
+        switch (op.getType()) {
+            case SHAPE -> writeShape(out, op.getShape());
+            case DELETE_SHAPES -> {
+                long[] ids = op.getShapeIds();
+                out.writeInt(ids.length);
+                for (long id : ids) out.writeLong(id);
+            }
+            case RESTORE_SHAPES, FILE_DATA -> {
+                List<ShapeData> shapes = op.getShapes();
+                out.writeInt(shapes.size());
+                for (ShapeData shape : shapes) writeShape(out, shape);
+            }
+            case MERGE_SHAPES -> {
+                ServerMessage.MergedShapes merge = op.getMergedShapes();
+                writeShape(out, merge.merged);
+                out.writeInt(merge.removed.length);
+                for (long id : merge.removed) out.writeLong(id);
+            }
+            case LAYER_CLEAR -> out.writeUTF(op.getLayer());
+            case CLEAR_CANVAS -> { }
+            default -> throw new IllegalArgumentException("Not a board operation: " + op.getType());
+        }
+    }
+
+    //Replayed ops carry their epoch millis as the message timestamp
+    private static ServerMessage readPayload(ServerMessage.MessageType type, long time, DataInputStream in) throws IOException {
+        switch (type) {
+            case SHAPE:
+                return new ServerMessage(type, readShape(in), time);
+            case DELETE_SHAPES: {
+                long[] ids = new long[in.readInt()];
+                for (int i = 0; i < ids.length; i++) ids[i] = in.readLong();
+                return new ServerMessage(type, ids, time);
+            }
+            case RESTORE_SHAPES:
+            case FILE_DATA: {
+                int count = in.readInt();
+                List<ShapeData> shapes = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) shapes.add(readShape(in));
+                return new ServerMessage(type, shapes, time);
+            }
+            case MERGE_SHAPES: {
+                ShapeData merged = readShape(in);
+                long[] removed = new long[in.readInt()];
+                for (int i = 0; i < removed.length; i++) removed[i] = in.readLong();
+                return new ServerMessage(type, new ServerMessage.MergedShapes(merged, removed), time);
+            }
+            case LAYER_CLEAR:
+                return new ServerMessage(type, in.readUTF(), time);
+            default:
+                return new ServerMessage(type, null, time);
+        }
+    }
+
+    //Flags byte: older logs wrote a boolean here, so bit 0 is still "has text"
+    private static final int HAS_TEXT = 1;
+    private static final int HAS_STROKE = 2;
+    private static final int HAS_LAYER = 4;
+    private static final int LONG_TEXT = 8; //Text as length and UTF-8 bytes; older logs used writeUTF, capped at 64 KB
+    private static final int WIDE_STROKE = 16; //Stroke outside the short range, written in full after the flags
+
+    static void writeShape(DataOutputStream out, ShapeData shape) throws IOException {
+        out.writeLong(shape.id);
+        out.writeByte(toolCode(shape.type));
+        out.writeInt(shape.color.getRGB());
+        boolean wide = shape.stroke != (short) shape.stroke;
+        out.writeShort(wide ? 0 : shape.stroke);
+        out.writeInt(shape.start.x);
+        out.writeInt(shape.start.y);
+        out.writeInt(shape.end.x);
+        out.writeInt(shape.end.y);
+        out.writeByte((shape.text != null ? HAS_TEXT : 0) | (shape.strokeId != 0 || shape.xs != null ? HAS_STROKE : 0)
+                | (shape.layer != null ? HAS_LAYER : 0) | LONG_TEXT | (wide ? WIDE_STROKE : 0));
+        if (wide) out.writeInt(shape.stroke);
+        if (shape.text != null) writeText(out, shape.text);
+        if (shape.layer != null) out.writeUTF(shape.layer);
+        if (shape.strokeId != 0 || shape.xs != null) {
+            out.writeLong(shape.strokeId);
+            int points = shape.xs != null ? shape.xs.length : 0;
+            out.writeInt(points);
+            for (int i = 0; i < points; i++) {
+                out.writeInt(shape.xs[i]);
+                out.writeInt(shape.ys[i]);
+            }
+        }
+    }
+
+    static ShapeData readShape(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        ToolType type = toolType(in.readByte());
+        Color color = new Color(in.readInt(), true);
+        int stroke = in.readShort();
+        Point start = new Point(in.readInt(), in.readInt());
+        Point end = new Point(in.readInt(), in.readInt());
+        int flags = in.readByte();
+        if ((flags & WIDE_STROKE) != 0) stroke = in.readInt();
+        String text = (flags & HAS_TEXT) == 0 ? null : (flags & LONG_TEXT) != 0 ? readText(in) : in.readUTF();
+        ShapeData shape = new ShapeData(type, color, stroke, start, end, text);
+        shape.id = id;
+        if ((flags & HAS_LAYER) != 0) shape.layer = in.readUTF();
+        if ((flags & HAS_STROKE) != 0) {
+            shape.strokeId = in.readLong();
+            int points = in.readInt();
+            if (points > 0) {
+                shape.xs = new int[points];
+                shape.ys = new int[points];
+                for (int i = 0; i < points; i++) {
+                    shape.xs[i] = in.readInt();
+                    shape.ys[i] = in.readInt();
+                }
+            }
+        }
+        return shape;
+    }
+
+    //Strings of any length, where writeUTF fails past 64 KB
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readText(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new InvalidObjectException("Negative text length " + length);
+        return new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+}
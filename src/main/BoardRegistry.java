@@ -0,0 +1,214 @@
+package main;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+//Luis Mauboy - 1684115
+//Boards by name, loaded on demand. A board nobody has used for idleMillis is
+//written to <dir>/<name>.board and dropped from the heap; so is the least
+//recently used idle board whenever the loaded boards exceed the memory
+//budget. Boards with clients are never evicted, so memory follows the active
+//boards rather than every board ever created. All disk work runs on the I/O
+//executor, which also orders a reload after the hibernation it depends on.
+//A board stays loaded until its file is written, so a failed write loses
+//nothing and is retried on the next sweep.
+//Board thread only, except loaded() and the sizes read by metrics.
+public class BoardRegistry {
+    private static final Pattern VALID_NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private final Executor io;
+    private final Executor boardThread;
+    private final ServerMetrics metrics;
+    private final Map<String, Board> loaded = new ConcurrentHashMap<>();
+    private final Map<String, List<Consumer<Board>>> loading = new HashMap<>(); //Waiting for a load to finish
+    private File dir;              //Null: boards are never hibernated
+    private long idleMillis;
+    private long memoryBudget;
+    private File historyDir;       //Null: no board history
+    private BiConsumer<String, ShapeStore.Snapshot> hibernated; //Told each board's shapes as it goes to disk
+
+    public BoardRegistry(Executor io, Executor boardThread, ServerMetrics metrics) {
+        this.io = io;
+        this.boardThread = boardThread;
+        this.metrics = metrics;
+    }
+
+    public void enableHibernation(File dir, long idleMillis, long memoryBudget) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create board directory " + dir);
+        }
+        this.dir = dir;
+        this.idleMillis = idleMillis;
+        this.memoryBudget = memoryBudget;
+    }
+
+    //Each board's history goes to <dir>/<name>/
+    public void enableHistory(File dir) {
+        this.historyDir = dir;
+    }
+
+    //Called on the I/O thread with each hibernated board's name and shapes; call before start
+    public void setHibernationListener(BiConsumer<String, ShapeStore.Snapshot> listener) {
+        this.hibernated = listener;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && VALID_NAME.matcher(name).matches();
+    }
+
+    //Calls ready on the board thread with the board, loading or creating it
+    //first if needed; ready gets null if the board could not be loaded
+    public void open(String name, Consumer<Board> ready) {
+        Board board = loaded.get(name);
+        if (board != null) {
+            board.lastActive = System.currentTimeMillis();
+            board.hibernating = false; //Back in use; a write in flight no longer drops it
+            ready.accept(board);
+            return;
+        }
+        List<Consumer<Board>> waiting = loading.get(name);
+        if (waiting != null) {
+            waiting.add(ready);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(ready);
+        loading.put(name, waiting);
+        long begin = System.nanoTime();
+        io.execute(() -> {
+            File file = fileOf(name);
+            boolean fromDisk = file != null && file.exists();
+            Board opened = load(name, fromDisk ? file : null);
+            boardThread.execute(() -> installed(name, opened, fromDisk, System.nanoTime() - begin));
+        });
+    }
+
+    //I/O thread: a hibernated board, or a new one if file is null; null if it failed
+    private Board load(String name, File file) {
+        try {
+            Board board = file != null ? Board.read(name, file) : new Board(name);
+            if (historyDir != null) {
+                board.history = new BoardHistory(new File(historyDir, name), io);
+            }
+            return board;
+        } catch (IOException e) {
+            System.err.println("Could not load board " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void installed(String name, Board board, boolean fromDisk, long nanos) {
+        if (board != null) {
+            loaded.put(name, board);
+            if (fromDisk) {
+                metrics.recordColdLoad(nanos);
+            } else if (board.history != null) {
+                //A new board starts empty, whatever an older history ended with
+                board.history.record(new ServerMessage(ServerMessage.MessageType.CLEAR_CANVAS), board.shapes);
+            }
+        }
+        for (Consumer<Board> ready : loading.remove(name)) {
+            ready.accept(board);
+        }
+        if (board != null) {
+            evict(System.currentTimeMillis()); //The new board may have pushed others over budget
+        }
+    }
+
+    //A loaded board, or null; safe from any thread
+    public Board get(String name) {
+        return loaded.get(name);
+    }
+
+    public Collection<Board> loaded() {
+        return loaded.values();
+    }
+
+    public long estimatedBytes() {
+        long total = 0;
+        for (Board board : loaded.values()) {
+            total += board.estimatedBytes();
+        }
+        return total;
+    }
+
+    //Hibernates boards idle for idleMillis, then least recently used idle
+    //boards until the rest fit the memory budget
+    public void evict(long now) {
+        if (dir == null) return;
+        List<Board> idle = new ArrayList<>();
+        long total = 0;
+        for (Board board : loaded.values()) {
+            if (board.hibernating) continue; //Already on its way out
+            total += board.estimatedBytes();
+            if (board.isIdle()) idle.add(board);
+        }
+        idle.sort(Comparator.comparingLong(board -> board.lastActive));
+        for (Board board : idle) {
+            if (now - board.lastActive < idleMillis && total <= memoryBudget) break;
+            total -= board.estimatedBytes();
+            hibernate(board);
+        }
+    }
+
+    private void hibernate(Board board) {
+        board.hibernating = true;
+        ShapeStore.Snapshot shapes = board.shapes.snapshot();
+        ServerMessage.ChatPage chat = board.chat.latest(Board.CHAT_HISTORY_CAPACITY);
+        io.execute(() -> {
+            boolean saved = save(board, shapes, chat);
+            boardThread.execute(() -> hibernated(board, shapes, saved));
+        });
+    }
+
+    //Board thread: drops the board once its file is on disk, unless a join reopened it meanwhile
+    private void hibernated(Board board, ShapeStore.Snapshot shapes, boolean saved) {
+        if (!board.hibernating) return; //Reopened; a later sweep writes it again
+        board.hibernating = false;
+        if (!saved) return;             //Still loaded, so the next sweep retries
+        loaded.remove(board.name);
+        metrics.recordHibernation();
+        io.execute(() -> {
+            closeHistory(board);
+            if (hibernated != null) hibernated.accept(board.name, shapes);
+        });
+    }
+
+    private boolean save(Board board, ShapeStore.Snapshot shapes, ServerMessage.ChatPage chat) {
+        try {
+            Board.write(fileOf(board.name), shapes, chat);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not hibernate board " + board.name + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    //Shutdown: saves every loaded board on the calling thread, after the I/O executor has drained
+    public void closeAll() {
+        for (Board board : loaded.values()) {
+            if (dir != null) {
+                save(board, board.shapes.snapshot(), board.chat.latest(Board.CHAT_HISTORY_CAPACITY));
+            }
+            closeHistory(board);
+        }
+        loaded.clear();
+    }
+
+    private static void closeHistory(Board board) {
+        if (board.history == null) return;
+        try {
+            board.history.close();
+        } catch (IOException e) {
+            System.err.println("Could not close history of " + board.name + ": " + e.getMessage());
+        }
+    }
+
+    private File fileOf(String name) {
+        return dir == null ? null : new File(dir, name + ".board");
+    }
+}
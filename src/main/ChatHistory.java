@@ -0,0 +1,58 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+//Luis Mauboy - 1684115
+//Fixed-capacity ring buffer of chat lines. Every line gets a sequence number so
+//clients can page backwards; once the buffer wraps, the oldest lines are gone
+//and memory stays constant however long the session runs.
+public class ChatHistory {
+    private final String[] lines;
+    private long nextSeq = 0;
+
+    public ChatHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.lines = new String[capacity];
+    }
+
+    //Adds a line and returns its sequence number
+    public synchronized long append(String line) {
+        long seq = nextSeq++;
+        lines[(int) (seq % lines.length)] = line;
+        return seq;
+    }
+
+    //The most recent lines, oldest first
+    public synchronized ServerMessage.ChatPage latest(int max) {
+        return before(nextSeq, max);
+    }
+
+    //Up to max lines with sequence numbers below beforeSeq, oldest first
+    public synchronized ServerMessage.ChatPage before(long beforeSeq, int max) {
+        long oldest = Math.max(0, nextSeq - lines.length);
+        long end = Math.min(beforeSeq, nextSeq);
+        long start = Math.max(oldest, end - max);
+        List<String> page = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            page.add(lines[(int) (seq % lines.length)]);
+        }
+        return new ServerMessage.ChatPage(page, Math.max(start, 0), start > oldest);
+    }
+
+    //Puts back lines saved from latest(), keeping their sequence numbers
+    public synchronized void restore(ServerMessage.ChatPage page) {
+        clear();
+        nextSeq = page.firstSeq;
+        for (String line : page.messages) {
+            append(line);
+        }
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(lines, null);
+        nextSeq = 0;
+    }
+}
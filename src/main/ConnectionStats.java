@@ -0,0 +1,82 @@
+package main;
+
+import java.util.Arrays;
+//Luis Mauboy - 1684115
+//Rolling health of one client's connection: the last WINDOW ping round trips
+//and the last WINDOW board-queue waits of its messages, and whether a ping is
+//still unanswered. A client gets FIRST_PONG_GRACE_MILLIS extra for its first
+//answer, while it may still be decoding the board. Changed on the board
+//thread; the ping state is also read by the stall check on another thread.
+public class ConnectionStats {
+    private static final int WINDOW = 64;
+    private static final long FIRST_PONG_GRACE_NANOS = 10_000_000_000L;
+
+    private final long[] roundTrips = new long[WINDOW];
+    private final long[] queueDelays = new long[WINDOW];
+    private int roundTripCount;   //Samples so far, at most WINDOW
+    private int queueDelayCount;
+    private int nextRoundTrip;    //Oldest sample, overwritten next
+    private int nextQueueDelay;
+    private volatile long pingSentAt;  //Outstanding ping, 0 if none
+    private volatile boolean answered;
+    private volatile boolean stalled;
+
+    //Stamp for a new ping, or 0 while the last one is unanswered
+    public long ping(long now) {
+        if (pingSentAt != 0) return 0;
+        pingSentAt = now;
+        return now;
+    }
+
+    //A PONG arrived; returns the round trip, or -1 if it answers no outstanding ping
+    public long pong(long sentAt, long arrivedAt) {
+        if (sentAt == 0 || sentAt != pingSentAt) return -1;
+        long roundTrip = arrivedAt - sentAt;
+        roundTrips[nextRoundTrip] = roundTrip;
+        nextRoundTrip = (nextRoundTrip + 1) % WINDOW;
+        roundTripCount = Math.min(roundTripCount + 1, WINDOW);
+        pingSentAt = 0;
+        answered = true;
+        stalled = false;
+        return roundTrip;
+    }
+
+    public void queued(long nanos) {
+        queueDelays[nextQueueDelay] = nanos;
+        nextQueueDelay = (nextQueueDelay + 1) % WINDOW;
+        queueDelayCount = Math.min(queueDelayCount + 1, WINDOW);
+    }
+
+    //How long the outstanding ping has waited past its deadline, 0 if none
+    public long unansweredFor(long now) {
+        long sentAt = pingSentAt;
+        if (sentAt == 0) return 0;
+        return Math.max(0, now - sentAt - (answered ? 0 : FIRST_PONG_GRACE_NANOS));
+    }
+
+    //Stall check thread: marks the connection stalled; true the first time, until a pong clears it
+    public boolean stall() {
+        if (stalled) return false;
+        stalled = true;
+        return true;
+    }
+
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    public ServerMessage.Quality report(String username) {
+        return new ServerMessage.Quality(username,
+                percentile(roundTrips, roundTripCount, 50) / 1000,
+                percentile(roundTrips, roundTripCount, 99) / 1000,
+                percentile(queueDelays, queueDelayCount, 99) / 1000,
+                stalled);
+    }
+
+    private static long percentile(long[] ring, int count, double percentile) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(ring, count); //Before the ring fills, its first count slots
+        Arrays.sort(sorted);
+        return sorted[Math.max(0, (int) Math.ceil(percentile / 100 * count) - 1)];
+    }
+}
@@ -0,0 +1,55 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+//Luis Mauboy - 1684115
+//Named layers. A shape with no layer is on DRAWING, so older clients and
+//files keep working. Layers paint by rank: the background, the shared
+//drawing, then per-user layers and any others, with annotations on top.
+public final class Layers {
+    public static final String BACKGROUND = "background";
+    public static final String DRAWING = "drawing";
+    public static final String ANNOTATIONS = "annotations";
+    private static final String USER_PREFIX = "user:";
+    private static final int MAX_NAME_LENGTH = 64;
+
+    private Layers() {
+    }
+
+    public static String of(ShapeData shape) {
+        return shape.layer != null ? shape.layer : DRAWING;
+    }
+
+    //Layer each user owns and may clear without being manager
+    public static String userLayer(String username) {
+        return USER_PREFIX + username;
+    }
+
+    public static boolean isValidName(String layer) {
+        return layer == null || (!layer.isEmpty() && layer.length() <= MAX_NAME_LENGTH);
+    }
+
+    public static int rank(String layer) {
+        return switch (layer) {
+            case BACKGROUND -> 0;
+            case DRAWING -> 1;
+            case ANNOTATIONS -> 3;
+            default -> 2;
+        };
+    }
+
+    //Stable, so drawing order is kept within each layer
+    public static List<ShapeData> inPaintOrder(Iterable<ShapeData> shapes) {
+        List<ShapeData> ordered = new ArrayList<>();
+        boolean layered = false;
+        for (ShapeData shape : shapes) {
+            ordered.add(shape);
+            layered |= shape.layer != null;
+        }
+        if (layered) {
+            ordered.sort(Comparator.comparingInt(shape -> rank(of(shape))));
+        }
+        return ordered;
+    }
+}
@@ -0,0 +1,287 @@
+package main;
+
+import java.awt.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+//Luis Mauboy - 1684115
+//Headless load generator: opens N NetworkManager connections to a running
+//WhiteboardServer and replays freehand, shape and chat traffic at fixed
+//per-client rates. Every message is stamped with System.nanoTime() so
+//receivers in this process can measure end-to-end fan-out latency.
+//
+//  java -cp bin main.LoadGenerator [-host localhost] [-port 1234] [-clients 100]
+//        [-duration 30] [-strokes 30] [-shapes 0.5] [-chat 0.2] [-stroke-length 40] [-ramp 10]
+//        [-storm 0] [-board main] [-spread 0]
+//
+//Rates are messages per second per client. -storm N connects N more clients
+//all at once after the ramp (a class logging in together); they only watch.
+//Every client's time to first pixel, from connect to decoded board, is
+//reported. All clients join -board; the first becomes its manager if nobody
+//is on it, so the server closes that board when the run ends. With -spread N each client
+//watches and draws in its own 1600x1200 viewport somewhere on an N x N board,
+//so the server only fans out what each one can see.
+public class LoadGenerator {
+    private static final Random random = new Random();
+
+    private final String host;
+    private final int port;
+    private final int clientCount;
+    private final double strokeRate;
+    private final double shapeRate;
+    private final double chatRate;
+    private final int strokeLength;
+    private final int stormCount;
+    private final String board;
+    private final int spread;
+
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final ScheduledExecutorService scheduler;
+    private final LatencyHistogram shapeLatency = new LatencyHistogram();
+    private final LatencyHistogram chatLatency = new LatencyHistogram();
+    private final LatencyHistogram firstPixel = new LatencyHistogram();
+    private final LongAdder joinWaits = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    public LoadGenerator(String host, int port, int clientCount, double strokeRate, double shapeRate,
+                         double chatRate, int strokeLength, int stormCount, String board, int spread) {
+        this.host = host;
+        this.port = port;
+        this.clientCount = clientCount;
+        this.strokeRate = strokeRate;
+        this.shapeRate = shapeRate;
+        this.chatRate = chatRate;
+        this.strokeLength = strokeLength;
+        this.stormCount = stormCount;
+        this.board = board;
+        this.spread = spread;
+        this.scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    }
+
+    public void run(long durationSeconds, long rampMillis) throws Exception {
+        for (int i = 0; i < clientCount; i++) {
+            SimulatedClient client = new SimulatedClient("load-" + i);
+            client.connect();
+            clients.add(client);
+            if (rampMillis > 0) Thread.sleep(rampMillis);
+        }
+        System.out.println("Connected " + clients.size() + " clients to " + host + ":" + port);
+        List<SimulatedClient> drawing = new ArrayList<>(clients);
+        if (stormCount > 0) {
+            joinStorm();
+        }
+
+        for (SimulatedClient client : drawing) {
+            schedule(client::sendStrokeSegment, strokeRate);
+            schedule(client::sendShape, shapeRate);
+            schedule(client::sendChat, chatRate);
+        }
+
+        long start = System.nanoTime();
+        long lastSent = 0;
+        long lastReceived = 0;
+        for (long second = 5; second <= durationSeconds; second += 5) {
+            Thread.sleep(5000);
+            long s = sent.sum();
+            long r = received.sum();
+            System.out.printf("[%3ds] sent %.0f msg/s, received %.0f msg/s, shape latency p50=%.2fms p99=%.2fms%n",
+                    second, (s - lastSent) / 5.0, (r - lastReceived) / 5.0,
+                    shapeLatency.getPercentile(50) / 1e6, shapeLatency.getPercentile(99) / 1e6);
+            lastSent = s;
+            lastReceived = r;
+        }
+        long remaining = durationSeconds % 5;
+        if (remaining > 0) Thread.sleep(remaining * 1000);
+
+        scheduler.shutdownNow();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Thread.sleep(500); //Let in-flight fan-out arrive
+        report(elapsed);
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+    }
+
+    //Connects stormCount watchers from as many threads at once and waits for their boards
+    private void joinStorm() throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(stormCount);
+        CountDownLatch start = new CountDownLatch(1);
+        List<SimulatedClient> storm = new ArrayList<>();
+        for (int i = 0; i < stormCount; i++) {
+            SimulatedClient client = new SimulatedClient("storm-" + i);
+            storm.add(client);
+            pool.execute(() -> {
+                try {
+                    start.await();
+                    client.connect();
+                } catch (IOException e) {
+                    errors.increment();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        pool.shutdown();
+        for (SimulatedClient client : storm) {
+            client.boardReceived.await(60, TimeUnit.SECONDS);
+        }
+        clients.addAll(storm);
+        System.out.printf("Join storm: %d clients in %.2f s, %d were told to wait%n",
+                stormCount, (System.nanoTime() - begin) / 1e9, joinWaits.sum());
+        System.out.println("Time to first pixel: " + firstPixel.summary(1e6, "ms"));
+    }
+
+    private void schedule(Runnable task, double ratePerSecond) {
+        if (ratePerSecond <= 0) return;
+        long periodMicros = Math.max(1, (long) (1_000_000 / ratePerSecond));
+        //Random phase so clients don't fire in lockstep
+        scheduler.scheduleAtFixedRate(task, random.nextInt((int) Math.min(periodMicros, Integer.MAX_VALUE)),
+                periodMicros, TimeUnit.MICROSECONDS);
+    }
+
+    private void report(double elapsedSeconds) {
+        System.out.println();
+        System.out.printf("Duration:   %.1f s, %d clients%n", elapsedSeconds, clients.size());
+        System.out.printf("Sent:       %d messages (%.0f msg/s)%n", sent.sum(), sent.sum() / elapsedSeconds);
+        System.out.printf("Received:   %d messages (%.0f msg/s, %.0f msg/s per client)%n", received.sum(),
+                received.sum() / elapsedSeconds, received.sum() / elapsedSeconds / Math.max(1, clients.size()));
+        System.out.printf("Errors:     %d%n", errors.sum());
+        System.out.println("Shape fan-out latency: " + shapeLatency.summary(1e6, "ms"));
+        System.out.println("Chat fan-out latency:  " + chatLatency.summary(1e6, "ms"));
+        System.out.println("Time to first pixel:   " + firstPixel.summary(1e6, "ms"));
+    }
+
+    //One NetworkManager connection replaying a user's drawing and chat
+    private class SimulatedClient implements WhiteboardListener {
+        private final String username;
+        private final NetworkManager network = new NetworkManager(this);
+        private final CountDownLatch boardReceived = new CountDownLatch(1);
+        private final Rectangle view;   //Where this user looks and draws
+        private long connectedAt;
+
+        private Point strokePoint;
+        private int strokeRemaining;
+        private Color strokeColor;
+        private long strokeId;
+
+        SimulatedClient(String username) {
+            this.username = username;
+            this.view = spread > 0
+                    ? new Rectangle(random.nextInt(Math.max(1, spread - 1600)), random.nextInt(Math.max(1, spread - 1200)), 1600, 1200)
+                    : new Rectangle(0, 0, 1600, 1200);
+        }
+
+        void connect() throws IOException {
+            connectedAt = System.nanoTime();
+            network.connect(host, port, username, board, spread > 0 ? view : null);
+        }
+
+        //Continues the current freehand stroke by one segment, like mouseDragged
+        synchronized void sendStrokeSegment() {
+            if (strokeRemaining <= 0) {
+                strokePoint = new Point(view.x + random.nextInt(view.width), view.y + random.nextInt(view.height));
+                strokeColor = new Color(random.nextInt(0xFFFFFF));
+                strokeRemaining = strokeLength;
+                strokeId = ShapeData.nextId();
+            }
+            Point next = new Point(strokePoint.x + random.nextInt(11) - 5, strokePoint.y + random.nextInt(11) - 5);
+            ShapeData segment = new ShapeData(ToolType.PENCIL, strokeColor, 4, strokePoint, next);
+            segment.strokeId = strokeId;
+            sendStamped(ServerMessage.MessageType.SHAPE, segment);
+            strokePoint = next;
+            strokeRemaining--;
+        }
+
+        void sendShape() {
+            ToolType[] tools = {ToolType.LINE, ToolType.RECTANGLE, ToolType.OVAL, ToolType.TRIANGLE};
+            Point start = new Point(view.x + random.nextInt(view.width), view.y + random.nextInt(view.height));
+            Point end = new Point(start.x + random.nextInt(200), start.y + random.nextInt(200));
+            sendStamped(ServerMessage.MessageType.SHAPE,
+                    new ShapeData(tools[random.nextInt(tools.length)], Color.BLACK, 4, start, end));
+        }
+
+        void sendChat() {
+            sendStamped(ServerMessage.MessageType.CHAT_MESSAGE, username + ": message " + random.nextInt(100000));
+        }
+
+        private void sendStamped(ServerMessage.MessageType type, Object data) {
+            if (!network.isConnected()) return;
+            try {
+                network.sendMessage(new ServerMessage(type, data, System.nanoTime()));
+                sent.increment();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public void messageReceived(ServerMessage message) {
+            received.increment();
+            if (message.getType() == ServerMessage.MessageType.BOARD_SNAPSHOT) {
+                try {
+                    BoardFile.decode(message.getBoardSnapshot()); //Part of the cost of the first paint
+                    firstPixel.record(System.nanoTime() - connectedAt);
+                } catch (IOException e) {
+                    errors.increment();
+                }
+                boardReceived.countDown();
+            } else if (message.getType() == ServerMessage.MessageType.JOIN_STATUS) {
+                joinWaits.increment();
+            } else if (message.getType() == ServerMessage.MessageType.ERROR) {
+                errors.increment();
+                boardReceived.countDown(); //Turned away
+            }
+            if (message.getTimestamp() != 0) {
+                long latency = System.nanoTime() - message.getTimestamp();
+                if (message.getType() == ServerMessage.MessageType.SHAPE) {
+                    shapeLatency.record(latency);
+                } else if (message.getType() == ServerMessage.MessageType.CHAT_MESSAGE) {
+                    chatLatency.record(latency);
+                }
+            }
+        }
+
+        @Override
+        public void connectionLost(String reason) {
+            errors.increment();
+            System.err.println(username + " disconnected: " + reason);
+        }
+
+        void close() {
+            network.disconnect();
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        try {
+            LoadGenerator generator = new LoadGenerator(
+                    options.getOrDefault("-host", "localhost"),
+                    Integer.parseInt(options.getOrDefault("-port", "1234")),
+                    Integer.parseInt(options.getOrDefault("-clients", "100")),
+                    Double.parseDouble(options.getOrDefault("-strokes", "30")),
+                    Double.parseDouble(options.getOrDefault("-shapes", "0.5")),
+                    Double.parseDouble(options.getOrDefault("-chat", "0.2")),
+                    Integer.parseInt(options.getOrDefault("-stroke-length", "40")),
+                    Integer.parseInt(options.getOrDefault("-storm", "0")),
+                    options.getOrDefault("-board", WhiteboardServer.DEFAULT_BOARD),
+                    Integer.parseInt(options.getOrDefault("-spread", "0")));
+            generator.run(Long.parseLong(options.getOrDefault("-duration", "30")),
+                    Long.parseLong(options.getOrDefault("-ramp", "10")));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid option: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Load generation failed: " + e.getMessage());
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,114 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+//Luis Mauboy - 1684115
+//Bounded lock-free multi-producer single-consumer queue (Vyukov's array
+//queue). Producers claim a slot with one CAS on the tail; each slot's
+//sequence number tells the consumer when it is filled and producers when it
+//is free again. The consumer parks when empty and producers wake it.
+public class MpscRingBuffer<E> {
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100); //Safety net for wakeups
+
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();  //Next position producers claim
+    private volatile long head = 0;                    //Next position the consumer reads
+    private volatile Thread waiting;                   //Consumer parked on an empty queue
+
+    public MpscRingBuffer(int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        buffer = new Object[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+    }
+
+    //Returns false if the queue is full
+    public boolean offer(E e) {
+        long pos = tail.get();
+        int slot;
+        while (true) {
+            slot = (int) (pos & mask);
+            long diff = sequences.get(slot) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) break;
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false; //Consumer has not freed this slot yet
+            } else {
+                pos = tail.get();
+            }
+        }
+        buffer[slot] = e;
+        sequences.set(slot, pos + 1); //Volatile store publishes e before the wakeup check
+        Thread consumer = waiting;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    //Blocks while full, backing off from spinning to parking
+    public void put(E e) {
+        int attempts = 0;
+        while (!offer(e)) {
+            if (++attempts < 100) {
+                Thread.onSpinWait();
+            } else if (attempts < 200) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+        }
+    }
+
+    //Consumer only; null if empty
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long pos = head;
+        int slot = (int) (pos & mask);
+        if (sequences.get(slot) != pos + 1) {
+            return null;
+        }
+        E e = (E) buffer[slot];
+        buffer[slot] = null;
+        sequences.lazySet(slot, pos + buffer.length);
+        head = pos + 1;
+        return e;
+    }
+
+    //Consumer only; parks until an element arrives
+    public E take() throws InterruptedException {
+        E e = poll();
+        while (e == null) {
+            waiting = Thread.currentThread();
+            e = poll(); //Re-check after publishing, so a concurrent offer can't be missed
+            if (e == null) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+                if (Thread.interrupted()) {
+                    waiting = null;
+                    throw new InterruptedException();
+                }
+                e = poll();
+            }
+            waiting = null;
+        }
+        return e;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+}
@@ -1,36 +1,48 @@
 package main;
 
+import java.awt.Rectangle;
 import java.io.*;
 import java.net.Socket;
 import java.util.List;
-import javax.swing.*;
 //Luis Mauboy - 1684115
 public class NetworkManager {
     private Socket socket;
     private ObjectOutputStream out;
     private ObjectInputStream in;
-    private WhiteboardFrame frame;
+    private final WhiteboardListener listener;
     private String username;
-    private boolean isConnected = false;
+    private volatile boolean isConnected = false;
 
-    public NetworkManager(WhiteboardFrame frame) {
-        this.frame = frame;
+    public NetworkManager(WhiteboardListener listener) {
+        this.listener = listener;
     }
     
     //Connection method
     public void connect(String ip, int port, String username) throws IOException {
+        connect(ip, port, username, null);
+    }
+    
+    public void connect(String ip, int port, String username, String board) throws IOException {
+        connect(ip, port, username, board, null);
+    }
+    
+    //Joins the named board, or the server's default board if board is null.
+    //With a viewport (board coordinates) the server sends only what is near it.
+    public void connect(String ip, int port, String username, String board, Rectangle viewport) throws IOException {
         try {
         	this.username = username;
         	socket = new Socket(ip, port);
+        	socket.setTcpNoDelay(true); //Strokes are small and latency-sensitive
             out = new ObjectOutputStream(socket.getOutputStream());
             in = new ObjectInputStream(socket.getInputStream());
             isConnected = true;
             
             //Send join message
-            sendMessage(new ServerMessage(ServerMessage.MessageType.USER_JOIN, username));
+            sendMessage(new ServerMessage(ServerMessage.MessageType.USER_JOIN, board == null && viewport == null
+                    ? username : new ServerMessage.JoinRequest(username, board, viewport)));
             
             //Start receiver thread
-            new Thread(this::receiveMessages).start();
+            new Thread(this::receiveMessages, "whiteboard-receiver").start();
         } catch (IOException e) {
         	isConnected = false;
         	throw new IOException("Connection failed: " + e.getMessage());
@@ -44,12 +56,18 @@ public class NetworkManager {
     			Object received = in.readObject();
     			
     			if (received instanceof ServerMessage) {
-    				SwingUtilities.invokeLater(() -> frame.processMessage((ServerMessage)received));
+    				ServerMessage message = (ServerMessage) received;
+    				if (message.getType() == ServerMessage.MessageType.PING) {
+    					//Answered here, not after the listener, so the server sees how far behind reading is
+    					sendMessage(new ServerMessage(ServerMessage.MessageType.PONG, null, message.getTimestamp()));
+    				} else {
+    					listener.messageReceived(message);
+    				}
     			}
     		}
     	} catch (Exception e) {
     		if (isConnected) { //Only notify if unexpected disconnect
-    			SwingUtilities.invokeLater(() -> frame.showError("Connection lost: " + e.getMessage()));
+    			listener.connectionLost(e.getMessage());
     		}
     	} finally {
     		closeConnection();
@@ -69,15 +87,13 @@ public class NetworkManager {
 	   sendMessage(new ServerMessage(ServerMessage.MessageType.KICK_NOTIFICATION, username));
    }
    
-  public void saveWhiteboard(File file) throws IOException {
-       List<ShapeData> shapes = frame.getCanvas().getShapes();
+  public void saveWhiteboard(File file, List<ShapeData> shapes) throws IOException {
        try (ObjectOutputStream fileOut = new ObjectOutputStream(new FileOutputStream(file))) {
            fileOut.writeObject(shapes);
        }
    }
    
    public void sendMessage(ServerMessage message) throws IOException {
-	   System.out.println("Sending message: " + message.getType() + " Data: " + message.getData());
        if (!isConnected) throw new IOException("Not connected to server");
        synchronized(out) {
     	   try {
@@ -98,6 +114,42 @@ public class NetworkManager {
 	   sendMessage(new ServerMessage(ServerMessage.MessageType.CHAT_MESSAGE, username + ": " + message));
    }
    
+   public void requestChatHistory(long beforeSeq) throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.CHAT_HISTORY_REQUEST, beforeSeq));
+   }
+   
+   //Every shape on the board, not just those in view, for saving locally
+   public void requestBoardDownload() throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.BOARD_DOWNLOAD));
+   }
+   
+   //Full user list, after a missed presence delta
+   public void requestUserList() throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.USER_LIST_REQUEST));
+   }
+   
+   //speed 0 shows the board at from without replaying
+   public void requestPlayback(long from, long to, double speed) throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.PLAYBACK_REQUEST,
+			   new ServerMessage.PlaybackRequest(from, to, speed)));
+   }
+   
+   public void stopPlayback() throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.PLAYBACK_STOP));
+   }
+   
+   public void restoreHistory(long time) throws IOException {
+	   sendMessage(new ServerMessage(ServerMessage.MessageType.HISTORY_RESTORE, time));
+   }
+   
+   public boolean isConnected() {
+	   return isConnected;
+   }
+   
+   public void disconnect() {
+	   closeConnection();
+   }
+   
    private void closeConnection() {
        isConnected = false;
        try {
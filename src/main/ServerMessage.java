@@ -1,5 +1,6 @@
 package main;
 
+import java.awt.Rectangle;
 import java.io.Serializable;
 import java.util.List;
 //Luis Mauboy - 1684115
@@ -10,17 +11,29 @@ public class ServerMessage implements Serializable {
         //Drawing operations
         SHAPE,				
         CLEAR_CANVAS,		
+        DELETE_SHAPES,      //Object eraser and undo (data: long[] ids)
+        RESTORE_SHAPES,     //Redo and undo of erase (data: List<ShapeData>)
+        MERGE_SHAPES,       //Server merged stroke segments into one shape (data: MergedShapes)
+        LAYER_CLEAR,        //Removes every shape on one layer (data: String layer)
+        VIEWPORT,           //Client's visible board area changed (data: Rectangle in board coordinates)
+        TILE_DATA,          //Shapes of tiles that came into view (data: Tiles)
         
         //User management
-        USER_JOIN,
+        USER_JOIN,          //First message (data: JoinRequest, or a username for the default board)
         JOIN_REQUEST,       
         APPROVAL_RESPONSE,  
-        USER_LIST,          
+        USER_LIST,          //Full list on join or resync (data: UserList)
+        USER_PRESENCE,      //One user joined, left or changed role (data: Presence)
+        USER_LIST_REQUEST,  //Client missed a presence version and asks for the full list
         ASSIGN_MANAGER,     
         KICK_NOTIFICATION,  
+        JOIN_STATUS,        //Joiner is queued behind other snapshot transfers (data: Integer ahead)
+        BOARD_SNAPSHOT,     //Whole board for a joiner (data: byte[] from BoardFile.encode)
         
         //Chat system
         CHAT_MESSAGE,		
+        CHAT_HISTORY,
+        CHAT_HISTORY_REQUEST,
         
         //File operations
         FILE_DATA,			
@@ -28,6 +41,20 @@ public class ServerMessage implements Serializable {
         LOAD_REQUEST,
         SAVE_RESPONSE,
         LOAD_RESPONSE,
+        EXPORT_REQUEST,     //Manager renders the board to a PNG on the server (data: ExportRequest)
+        BOARD_DOWNLOAD,     //Whole board for a local save; sent empty, answered with byte[] from BoardFile.encode
+        
+        //Board history
+        PLAYBACK_REQUEST,   //Replay or seek history for the requester (data: PlaybackRequest)
+        PLAYBACK_FRAME,     //One historical drawing operation (data: ServerMessage stamped with epoch millis)
+        PLAYBACK_END,       //Playback finished or stopped, live board follows as FILE_DATA
+        PLAYBACK_STOP,      //Client leaves playback
+        HISTORY_RESTORE,    //Manager resets the board to a past time (data: Long millis)
+        
+        //Connection health
+        PING,               //Server probe, answered at once (timestamp: server's System.nanoTime())
+        PONG,               //Answer to a PING (timestamp: the ping's, echoed)
+        CONNECTION_QUALITY, //Each user's link to the server, for the manager (data: List<Quality>)
         
         //System messages
         MANAGER_DISCONNECT,
@@ -37,14 +64,20 @@ public class ServerMessage implements Serializable {
 
     private final MessageType type;
     private final Object data;
+    private final long timestamp; //Sender's System.nanoTime(), 0 if not stamped (epoch millis in playback frames)
 
     public ServerMessage(MessageType type) {
         this(type, null);
     }
 
     public ServerMessage(MessageType type, Object data) {
+        this(type, data, 0L);
+    }
+
+    public ServerMessage(MessageType type, Object data, long timestamp) {
         this.type = type;
         this.data = data;
+        this.timestamp = timestamp;
     }
     
     //Getters
@@ -55,14 +88,21 @@ public class ServerMessage implements Serializable {
     public Object getData() {
         return data;
     }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
     
     public String getErrorText() {
     	return type == MessageType.ERROR && data instanceof String ? (String)data : "";
     }
     
-    @SuppressWarnings("unchecked")
-	public List<String> getUserList(){
-    	return type == MessageType.USER_LIST && data instanceof List ? (List<String>)data : null;
+	public UserList getUserList(){
+    	return type == MessageType.USER_LIST && data instanceof UserList ? (UserList)data : null;
+    }
+    
+    public Presence getPresence() {
+        return (type == MessageType.USER_PRESENCE) ? (Presence) data : null;
     }
     
     public static ServerMessage createError(String message) {
@@ -74,6 +114,33 @@ public class ServerMessage implements Serializable {
         return (type == MessageType.JOIN_REQUEST) ? (String) data : null;
     }
 
+    public String getJoinUsername() {
+        if (type != MessageType.USER_JOIN) return null;
+        return data instanceof JoinRequest ? ((JoinRequest) data).username : (String) data;
+    }
+    
+    //Board named in the join, null for the default board
+    public String getJoinBoard() {
+        return (type == MessageType.USER_JOIN && data instanceof JoinRequest) ? ((JoinRequest) data).board : null;
+    }
+    
+    //Visible area sent with the join, null to receive the whole board
+    public Rectangle getJoinViewport() {
+        return (type == MessageType.USER_JOIN && data instanceof JoinRequest) ? ((JoinRequest) data).viewport : null;
+    }
+    
+    public Rectangle getViewport() {
+        return (type == MessageType.VIEWPORT) ? (Rectangle) data : null;
+    }
+    
+    public String getLayer() {
+        return (type == MessageType.LAYER_CLEAR) ? (String) data : null;
+    }
+    
+    public Tiles getTiles() {
+        return (type == MessageType.TILE_DATA) ? (Tiles) data : null;
+    }
+    
     public String getKickedUsername() {
     	return (type == MessageType.KICK_NOTIFICATION && data instanceof String) ? (String) data : null;
     }
@@ -86,15 +153,79 @@ public class ServerMessage implements Serializable {
         return (type == MessageType.CHAT_MESSAGE) ? (String) data : null;
     }
     
+    public ChatPage getChatPage() {
+        return (type == MessageType.CHAT_HISTORY) ? (ChatPage) data : null;
+    }
+    
+    //Sequence number the requested page should end before
+    public long getHistoryBefore() {
+        return (type == MessageType.CHAT_HISTORY_REQUEST && data instanceof Long) ? (Long) data : Long.MAX_VALUE;
+    }
+    
     @SuppressWarnings("unchecked")
 	public List<ShapeData> getShapes() {
-        return (type == MessageType.FILE_DATA) ? (List<ShapeData>) data : null;
+        return (type == MessageType.FILE_DATA || type == MessageType.RESTORE_SHAPES) ? (List<ShapeData>) data : null;
+    }
+    
+    public long[] getShapeIds() {
+        return (type == MessageType.DELETE_SHAPES && data instanceof long[]) ? (long[]) data : null;
+    }
+    
+    public byte[] getBoardSnapshot() {
+        return (type == MessageType.BOARD_SNAPSHOT) ? (byte[]) data : null;
+    }
+    
+    public byte[] getBoardDownload() {
+        return (type == MessageType.BOARD_DOWNLOAD) ? (byte[]) data : null;
+    }
+    
+    //Transfers queued ahead of this joiner
+    public int getJoinQueuePosition() {
+        return (type == MessageType.JOIN_STATUS && data instanceof Integer) ? (Integer) data : 0;
+    }
+    
+    public MergedShapes getMergedShapes() {
+        return (type == MessageType.MERGE_SHAPES) ? (MergedShapes) data : null;
+    }
+    
+    public PlaybackRequest getPlaybackRequest() {
+        return (type == MessageType.PLAYBACK_REQUEST) ? (PlaybackRequest) data : null;
+    }
+    
+    public ServerMessage getFrame() {
+        return (type == MessageType.PLAYBACK_FRAME) ? (ServerMessage) data : null;
+    }
+    
+    public ExportRequest getExportRequest() {
+        return (type == MessageType.EXPORT_REQUEST) ? (ExportRequest) data : null;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public List<Quality> getQualities() {
+        return (type == MessageType.CONNECTION_QUALITY) ? (List<Quality>) data : null;
     }
     
     public ApprovalResult getApprovalResult() {
         return (type == MessageType.APPROVAL_RESPONSE) ? (ApprovalResult) data : null;
     }
     
+   public static class JoinRequest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String username;
+        public final String board;
+        public final Rectangle viewport;  //Null: send the whole board
+
+        public JoinRequest(String username, String board) {
+            this(username, board, null);
+        }
+
+        public JoinRequest(String username, String board, Rectangle viewport) {
+            this.username = username;
+            this.board = board;
+            this.viewport = viewport;
+        }
+    }
+
    public static class ApprovalResult implements Serializable {
         private static final long serialVersionUID = 1L;
         public final boolean approved;
@@ -106,6 +237,124 @@ public class ServerMessage implements Serializable {
         }
     }
 
+   public static class ChatPage implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final List<String> messages;
+        public final long firstSeq;     //Sequence number of messages.get(0)
+        public final boolean hasMore;   //Older lines are still on the server
+
+        public ChatPage(List<String> messages, long firstSeq, boolean hasMore) {
+            this.messages = messages;
+            this.firstSeq = firstSeq;
+            this.hasMore = hasMore;
+        }
+    }
+
+   public static class UserList implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long version;      //Presence version the list reflects
+        public final List<String> users;
+        public final String manager;
+
+        public UserList(long version, List<String> users, String manager) {
+            this.version = version;
+            this.users = users;
+            this.manager = manager;
+        }
+    }
+
+   //Applies on top of a list at version - 1; a gap means a resync is needed
+   public static class Presence implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public enum Change { JOINED, LEFT, ROLE_CHANGED }
+
+        public final long version;
+        public final String username;
+        public final Change change;
+        public final boolean manager;   //Role after the change
+
+        public Presence(long version, String username, Change change, boolean manager) {
+            this.version = version;
+            this.username = username;
+            this.change = change;
+            this.manager = manager;
+        }
+    }
+
+   //One user's connection over its recent pings: network round trip, and how
+   //long its messages waited for the server's board thread
+   public static class Quality implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String username;
+        public final long roundTripP50Micros;
+        public final long roundTripP99Micros;
+        public final long queueDelayP99Micros;
+        public final boolean stalled;   //A ping has gone unanswered too long
+
+        public Quality(String username, long roundTripP50Micros, long roundTripP99Micros, long queueDelayP99Micros, boolean stalled) {
+            this.username = username;
+            this.roundTripP50Micros = roundTripP50Micros;
+            this.roundTripP99Micros = roundTripP99Micros;
+            this.queueDelayP99Micros = queueDelayP99Micros;
+            this.stalled = stalled;
+        }
+    }
+
+   //merged replaces the shape with the same id in place; removed are dropped
+   public static class MergedShapes implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final ShapeData merged;
+        public final long[] removed;
+
+        public MergedShapes(ShapeData merged, long[] removed) {
+            this.merged = merged;
+            this.removed = removed;
+        }
+    }
+
+   //Replaces every shape the client holds in the given tiles with shapes, and
+   //drops shapes outside interest, which the server no longer keeps current.
+   //All rectangles are in SpatialGrid tile units.
+   public static class Tiles implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final Rectangle interest;
+        public final List<Rectangle> tiles;
+        public final List<ShapeData> shapes;
+
+        public Tiles(Rectangle interest, List<Rectangle> tiles, List<ShapeData> shapes) {
+            this.interest = interest;
+            this.tiles = tiles;
+            this.shapes = shapes;
+        }
+    }
+
+   //Shows the board at from, then replays until to at speed times real time.
+   //A speed of 0 only seeks; the client stays on that state until PLAYBACK_STOP.
+   public static class PlaybackRequest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final long from;     //Epoch millis
+        public final long to;
+        public final double speed;
+
+        public PlaybackRequest(long from, long to, double speed) {
+            this.from = from;
+            this.to = to;
+            this.speed = speed;
+        }
+    }
+
+   //Server-side PNG path and pixels per board unit
+   public static class ExportRequest implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final String filename;
+        public final double scale;
+
+        public ExportRequest(String filename, double scale) {
+            this.filename = filename;
+            this.scale = scale;
+        }
+    }
+
 	public boolean isApproved() {
 		return type == MessageType.APPROVAL_RESPONSE && data instanceof Boolean ? (Boolean) data : false;
 	}
@@ -0,0 +1,425 @@
+package main;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.management.ObjectName;
+//Luis Mauboy - 1684115
+//Server-wide counters and latency histograms. Recording only touches striped
+//LongAdders and atomic histogram buckets, so the message path never takes a lock.
+//Exposed through JMX and a plain-text endpoint on the loopback interface.
+public class ServerMetrics implements ServerMetricsMXBean {
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder joinsRejected = new LongAdder();
+    private final LongAdder hibernations = new LongAdder();
+    private final LongAdder fanoutFiltered = new LongAdder();
+    private final LongAdder viewportUpdates = new LongAdder();
+    private final LongAdder tileShapes = new LongAdder();
+    private final LongAdder segmentsMerged = new LongAdder();
+    private final LongAdder shapesMerged = new LongAdder();
+    private final LongAdder pointsMerged = new LongAdder();
+    private final LongAdder pointsKept = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder stallDisconnects = new LongAdder();
+    private final Map<ServerMessage.MessageType, LongAdder> messagesByType = new EnumMap<>(ServerMessage.MessageType.class);
+    private final Map<ServerMessage.MessageType, LatencyHistogram> processingTime = new EnumMap<>(ServerMessage.MessageType.class);
+    private final LatencyHistogram fanoutTime = new LatencyHistogram();
+    private final LatencyHistogram joinTime = new LatencyHistogram();
+    private final LatencyHistogram snapshotShapes = new LatencyHistogram();
+    private final LatencyHistogram queueDelay = new LatencyHistogram();
+    private final LatencyHistogram coldLoadTime = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+
+    private volatile IntSupplier connectedUsers = () -> 0;
+    private volatile IntSupplier boardShapes = () -> 0;
+    private volatile IntSupplier queueDepth = () -> 0;
+    private volatile IntSupplier pendingJoins = () -> 0;
+    private volatile IntSupplier boardsLoaded = () -> 0;
+    private volatile LongSupplier boardMemory = () -> 0;
+    private volatile Map<String, List<ServerMessage.Quality>> connectionQuality = Map.of(); //By board, replaced each ping round
+
+    //Rates sampled once per second
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "metrics-sampler");
+        t.setDaemon(true);
+        return t;
+    });
+    private long lastMessagesIn, lastMessagesOut, lastBytesIn, lastBytesOut;
+    private volatile double messagesInRate, messagesOutRate, bytesInRate, bytesOutRate;
+
+    private HttpServer httpServer;
+
+    public ServerMetrics() {
+        for (ServerMessage.MessageType type : ServerMessage.MessageType.values()) {
+            messagesByType.put(type, new LongAdder());
+            processingTime.put(type, new LatencyHistogram());
+        }
+        sampler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
+    }
+
+    //Recording (hot path)
+    public void recordMessage(ServerMessage.MessageType type, long nanos) {
+        messagesIn.increment();
+        messagesByType.get(type).increment();
+        processingTime.get(type).record(nanos);
+    }
+
+    public void recordFanout(int recipients, long nanos) {
+        recordFanout(recipients, 0, nanos);
+    }
+
+    //filtered: clients skipped because the change was outside their viewport
+    public void recordFanout(int recipients, int filtered, long nanos) {
+        messagesOut.add(recipients);
+        fanoutFiltered.add(filtered);
+        fanoutTime.record(nanos);
+    }
+
+    //A client moved its viewport and was sent the shapes of its newly visible tiles
+    public void recordViewport(int shapes) {
+        viewportUpdates.increment();
+        tileShapes.add(shapes);
+    }
+
+    public void recordJoin(int shapes, long nanos) {
+        joins.increment();
+        snapshotShapes.record(shapes);
+        joinTime.record(nanos);
+    }
+
+    //A hibernated board brought back from disk for a join
+    public void recordColdLoad(long nanos) {
+        coldLoadTime.record(nanos);
+    }
+
+    public void recordHibernation() {
+        hibernations.increment();
+    }
+
+    //Turned away because too many joins were already pending
+    public void recordJoinRejected() {
+        joinsRejected.increment();
+    }
+
+    //A finished stroke: segments two-point lines became one polyline of points points
+    public void recordCompaction(int segments, int points) {
+        segmentsMerged.add(segments);
+        shapesMerged.increment();
+        pointsMerged.add(2L * segments);
+        pointsKept.add(points);
+    }
+
+    //Time a message waited in the board queue before processing
+    public void recordQueueDelay(long nanos) {
+        queueDelay.record(nanos);
+    }
+
+    //PING to PONG, all clients
+    public void recordRoundTrip(long nanos) {
+        roundTrip.record(nanos);
+    }
+
+    //A client left a ping unanswered long enough to count as stalled
+    public void recordStall() {
+        stalls.increment();
+    }
+
+    //A stalled client was dropped
+    public void recordStallDisconnect() {
+        stallDisconnects.increment();
+    }
+
+    public void setConnectionQuality(Map<String, List<ServerMessage.Quality>> connectionQuality) {
+        this.connectionQuality = connectionQuality;
+    }
+
+    public void setConnectedUsers(IntSupplier connectedUsers) {
+        this.connectedUsers = connectedUsers;
+    }
+
+    public void setBoardShapes(IntSupplier boardShapes) {
+        this.boardShapes = boardShapes;
+    }
+
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public void setPendingJoins(IntSupplier pendingJoins) {
+        this.pendingJoins = pendingJoins;
+    }
+
+    public void setBoardsLoaded(IntSupplier boardsLoaded) {
+        this.boardsLoaded = boardsLoaded;
+    }
+
+    public void setBoardMemory(LongSupplier boardMemory) {
+        this.boardMemory = boardMemory;
+    }
+
+    private void sampleRates() {
+        long in = messagesIn.sum(), out = messagesOut.sum(), bin = bytesIn.sum(), bout = bytesOut.sum();
+        messagesInRate = in - lastMessagesIn;
+        messagesOutRate = out - lastMessagesOut;
+        bytesInRate = bin - lastBytesIn;
+        bytesOutRate = bout - lastBytesOut;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        lastBytesIn = bin;
+        lastBytesOut = bout;
+    }
+
+    //Stream wrappers counting socket bytes, per stream and server-wide
+    public CountingInputStream countIn(InputStream in) {
+        return new CountingInputStream(in, bytesIn);
+    }
+
+    public CountingOutputStream countOut(OutputStream out) {
+        return new CountingOutputStream(out, bytesOut);
+    }
+
+    public static class CountingInputStream extends FilterInputStream {
+        private final LongAdder total;
+        private long count;
+
+        CountingInputStream(InputStream in, LongAdder total) {
+            super(in);
+            this.total = total;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+                total.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            int n = super.read(buf, off, len);
+            if (n > 0) {
+                count += n;
+                total.add(n);
+            }
+            return n;
+        }
+
+        //Only read by the thread that owns the stream
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder total;
+        private volatile long count;
+
+        CountingOutputStream(OutputStream out, LongAdder total) {
+            super(out);
+            this.total = total;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+            total.increment();
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            out.write(buf, off, len);
+            count += len;
+            total.add(len);
+        }
+
+        //Writers hold the ObjectOutputStream lock, so updates never race
+        public long getCount() {
+            return count;
+        }
+    }
+
+    //MXBean attributes
+    @Override public long getUptimeSeconds() { return (System.nanoTime() - startNanos) / 1_000_000_000L; }
+    @Override public int getConnectedUsers() { return connectedUsers.getAsInt(); }
+    @Override public int getBoardShapes() { return boardShapes.getAsInt(); }
+    @Override public int getQueueDepth() { return queueDepth.getAsInt(); }
+    @Override public long getMessagesIn() { return messagesIn.sum(); }
+    @Override public long getMessagesOut() { return messagesOut.sum(); }
+    @Override public long getBytesIn() { return bytesIn.sum(); }
+    @Override public long getBytesOut() { return bytesOut.sum(); }
+    @Override public long getJoins() { return joins.sum(); }
+    @Override public long getJoinsRejected() { return joinsRejected.sum(); }
+    @Override public int getPendingJoins() { return pendingJoins.getAsInt(); }
+    @Override public int getBoardsLoaded() { return boardsLoaded.getAsInt(); }
+    @Override public long getBoardMemoryBytes() { return boardMemory.getAsLong(); }
+    @Override public long getHibernations() { return hibernations.sum(); }
+    @Override public double getColdLoadP99Millis() { return coldLoadTime.getPercentile(99) / 1e6; }
+    @Override public double getMessagesInPerSecond() { return messagesInRate; }
+    @Override public double getMessagesOutPerSecond() { return messagesOutRate; }
+    @Override public double getBytesInPerSecond() { return bytesInRate; }
+    @Override public double getBytesOutPerSecond() { return bytesOutRate; }
+    @Override public double getFanoutP99Micros() { return fanoutTime.getPercentile(99) / 1e3; }
+    @Override public double getJoinP99Millis() { return joinTime.getPercentile(99) / 1e6; }
+    @Override public long getSnapshotShapesMax() { return snapshotShapes.getMax(); }
+    @Override public long getSegmentsCompacted() { return segmentsMerged.sum(); }
+    @Override public double getCompactionRatio() { return ratio(segmentsMerged.sum(), shapesMerged.sum()); }
+    @Override public long getFanoutFiltered() { return fanoutFiltered.sum(); }
+    @Override public long getViewportUpdates() { return viewportUpdates.sum(); }
+    @Override public double getQueueDelayP99Micros() { return queueDelay.getPercentile(99) / 1e3; }
+    @Override public double getRoundTripP99Millis() { return roundTrip.getPercentile(99) / 1e6; }
+    @Override public long getStalls() { return stalls.sum(); }
+
+    @Override
+    public int getStalledConnections() {
+        int stalled = 0;
+        for (List<ServerMessage.Quality> board : connectionQuality.values()) {
+            for (ServerMessage.Quality quality : board) {
+                if (quality.stalled) stalled++;
+            }
+        }
+        return stalled;
+    }
+
+    @Override
+    public double getShapeProcessingP99Micros() {
+        return processingTime.get(ServerMessage.MessageType.SHAPE).getPercentile(99) / 1e3;
+    }
+
+    private static double ratio(long before, long after) {
+        return after == 0 ? 1 : (double) before / after;
+    }
+
+    //Plain-text report, one "name value" pair per line
+    public String render() {
+        StringBuilder sb = new StringBuilder();
+        line(sb, "uptime_seconds", getUptimeSeconds());
+        line(sb, "connected_users", getConnectedUsers());
+        line(sb, "board_shapes", getBoardShapes());
+        line(sb, "boards_loaded", getBoardsLoaded());
+        line(sb, "board_memory_bytes", getBoardMemoryBytes());
+        line(sb, "hibernations_total", getHibernations());
+        line(sb, "queue_depth", getQueueDepth());
+        line(sb, "joins_total", getJoins());
+        line(sb, "joins_rejected_total", getJoinsRejected());
+        line(sb, "pending_joins", getPendingJoins());
+        line(sb, "messages_in_total", getMessagesIn());
+        line(sb, "messages_out_total", getMessagesOut());
+        line(sb, "bytes_in_total", getBytesIn());
+        line(sb, "bytes_out_total", getBytesOut());
+        line(sb, "messages_in_per_second", messagesInRate);
+        line(sb, "messages_out_per_second", messagesOutRate);
+        line(sb, "bytes_in_per_second", bytesInRate);
+        line(sb, "bytes_out_per_second", bytesOutRate);
+        line(sb, "fanout_filtered_total", getFanoutFiltered());
+        line(sb, "viewport_updates_total", getViewportUpdates());
+        line(sb, "tile_shapes_total", tileShapes.sum());
+        line(sb, "compaction_segments_total", segmentsMerged.sum());
+        line(sb, "compaction_shapes_total", shapesMerged.sum());
+        line(sb, "compaction_shape_ratio", getCompactionRatio());
+        line(sb, "compaction_point_ratio", ratio(pointsMerged.sum(), pointsKept.sum()));
+        line(sb, "stalled_connections", getStalledConnections());
+        line(sb, "stalls_total", getStalls());
+        line(sb, "stall_disconnects_total", stallDisconnects.sum());
+        for (ServerMessage.MessageType type : ServerMessage.MessageType.values()) {
+            long count = messagesByType.get(type).sum();
+            if (count > 0) {
+                line(sb, "messages_total{type=\"" + type + "\"}", count);
+                histogram(sb, "processing_micros{type=\"" + type + "\"}", processingTime.get(type), 1e3);
+            }
+        }
+        histogram(sb, "queue_delay_micros", queueDelay, 1e3);
+        histogram(sb, "fanout_micros", fanoutTime, 1e3);
+        histogram(sb, "join_millis", joinTime, 1e6);
+        histogram(sb, "cold_load_millis", coldLoadTime, 1e6);
+        histogram(sb, "snapshot_shapes", snapshotShapes, 1);
+        histogram(sb, "round_trip_millis", roundTrip, 1e6);
+        //Rolling figures of each connection, as the board's manager sees them
+        for (Map.Entry<String, List<ServerMessage.Quality>> board : connectionQuality.entrySet()) {
+            for (ServerMessage.Quality quality : board.getValue()) {
+                String labels = "board=\"" + board.getKey() + "\",user=\"" + escape(quality.username) + "\"";
+                line(sb, "client_round_trip_micros{" + labels + ",quantile=\"0.5\"}", quality.roundTripP50Micros);
+                line(sb, "client_round_trip_micros{" + labels + ",quantile=\"0.99\"}", quality.roundTripP99Micros);
+                line(sb, "client_queue_delay_micros{" + labels + ",quantile=\"0.99\"}", quality.queueDelayP99Micros);
+                line(sb, "client_stalled{" + labels + "}", quality.stalled ? 1 : 0);
+            }
+        }
+        return sb.toString();
+    }
+
+    //Usernames are free text
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void line(StringBuilder sb, String name, Object value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, LatencyHistogram h, double scale) {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1) + ",";
+        line(sb, base + "_count" + (brace < 0 ? "" : name.substring(brace)), h.getCount());
+        String[] quantiles = {"0.5", "0.9", "0.99", "0.999"};
+        for (String q : quantiles) {
+            line(sb, base + "{" + labels + "quantile=\"" + q + "\"}", h.getPercentile(Double.parseDouble(q) * 100) / scale);
+        }
+        line(sb, base + "_max" + (brace < 0 ? "" : name.substring(brace)), h.getMax() / scale);
+    }
+
+    //Registers the MXBean and starts the loopback HTTP endpoint (port <= 0 disables it)
+    public void export(int httpPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("main:type=WhiteboardServer"));
+        } catch (Exception e) {
+            System.err.println("JMX registration failed: " + e.getMessage());
+        }
+        if (httpPort <= 0) return;
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            httpServer.createContext("/stats", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            httpServer.setExecutor(sampler);
+            httpServer.start();
+            System.out.println("Stats available at http://localhost:" + httpPort + "/stats");
+        } catch (IOException e) {
+            System.err.println("Stats endpoint failed: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        if (httpServer != null) httpServer.stop(0);
+        sampler.shutdownNow();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName("main:type=WhiteboardServer"));
+        } catch (Exception e) {
+            //Not registered
+        }
+    }
+}
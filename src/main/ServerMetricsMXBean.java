@@ -0,0 +1,36 @@
+package main;
+//Luis Mauboy - 1684115
+//JMX view of ServerMetrics (registered as main:type=WhiteboardServer)
+public interface ServerMetricsMXBean {
+    long getUptimeSeconds();
+    int getConnectedUsers();
+    int getBoardShapes();
+    int getBoardsLoaded();
+    long getBoardMemoryBytes();
+    long getHibernations();
+    double getColdLoadP99Millis();
+    int getQueueDepth();
+    long getMessagesIn();
+    long getMessagesOut();
+    long getBytesIn();
+    long getBytesOut();
+    long getJoins();
+    long getJoinsRejected();
+    int getPendingJoins();
+    double getMessagesInPerSecond();
+    double getMessagesOutPerSecond();
+    double getBytesInPerSecond();
+    double getBytesOutPerSecond();
+    double getShapeProcessingP99Micros();
+    double getFanoutP99Micros();
+    long getFanoutFiltered();
+    long getViewportUpdates();
+    double getJoinP99Millis();
+    long getSnapshotShapesMax();
+    double getQueueDelayP99Micros();
+    double getRoundTripP99Millis();
+    long getStalls();
+    int getStalledConnections();
+    long getSegmentsCompacted();
+    double getCompactionRatio();
+}
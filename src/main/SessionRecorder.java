@@ -0,0 +1,166 @@
+package main;
+
+import java.io.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+//Luis Mauboy - 1684115
+//Records every inbound ServerMessage with its arrival time and connection so
+//SessionReplayer can drive the same session against a server later. The file
+//is a gzipped object stream: a header with the start time, then records of
+//kind, nanoseconds since the start and connection id. JOIN and MESSAGE carry
+//the message as it arrived, before the board thread touches it; BOARD
+//carries a board's final shapes, written as boards hibernate and at shutdown,
+//so a replay can check it rebuilt the same boards. Safe from any thread.
+public class SessionRecorder implements Closeable {
+    static final String HEADER = "session-v1";
+    static final byte JOIN = 1;
+    static final byte MESSAGE = 2;
+    static final byte LEAVE = 3;
+    static final byte BOARD = 4;
+    static final byte END = 5;
+    private static final int RESET_INTERVAL = 1024; //Bounds the stream's handle table
+
+    private final ObjectOutputStream out;
+    private final long start = System.nanoTime();
+    private int sinceReset;
+    private boolean closed;
+
+    public SessionRecorder(File file) throws IOException {
+        out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), 1 << 16));
+        out.writeUTF(HEADER);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    public void join(int client, ServerMessage message) {
+        write(JOIN, client, message);
+    }
+
+    public void message(int client, ServerMessage message) {
+        write(MESSAGE, client, message);
+    }
+
+    public void leave(int client) {
+        write(LEAVE, client, null);
+    }
+
+    //A board's shapes as they ended; a later record for the same board replaces it
+    public synchronized void board(String name, ShapeStore.Snapshot shapes) {
+        if (closed) return;
+        try {
+            byte[] encoded = BoardFile.encode(shapes);
+            header(BOARD, 0);
+            out.writeUTF(name);
+            out.writeInt(encoded.length);
+            out.write(encoded);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private synchronized void write(byte kind, int client, ServerMessage message) {
+        if (closed) return;
+        try {
+            header(kind, client);
+            if (message != null) {
+                out.writeObject(message);
+            }
+            if (++sinceReset >= RESET_INTERVAL) {
+                out.reset();
+                sinceReset = 0;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void header(byte kind, int client) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(System.nanoTime() - start);
+        out.writeInt(client);
+    }
+
+    //A full disk should not take the server down; the recording just ends early
+    private void fail(IOException e) {
+        System.err.println("Session recording stopped: " + e.getMessage());
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        header(END, 0);
+        out.close();
+    }
+
+    //One record read back by SessionReplayer
+    static class Record {
+        final byte kind;
+        final long nanos;
+        final int client;
+        final ServerMessage message; //JOIN and MESSAGE
+        final String board;          //BOARD
+        final byte[] shapes;         //BOARD, as BoardFile.encode bytes
+
+        Record(byte kind, long nanos, int client, ServerMessage message, String board, byte[] shapes) {
+            this.kind = kind;
+            this.nanos = nanos;
+            this.client = client;
+            this.message = message;
+            this.board = board;
+            this.shapes = shapes;
+        }
+    }
+
+    //Reads a recording one record at a time
+    static class Reader implements Closeable {
+        private final ObjectInputStream in;
+        final long startedAt; //Epoch millis
+
+        Reader(File file) throws IOException {
+            in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16), 1 << 16));
+            if (!HEADER.equals(in.readUTF())) {
+                throw new InvalidObjectException("Not a session recording");
+            }
+            startedAt = in.readLong();
+        }
+
+        //Next record, or null at the end; a recording cut short by a crash ends at its last whole record
+        Record next() throws IOException, ClassNotFoundException {
+            byte kind;
+            try {
+                kind = in.readByte();
+            } catch (EOFException e) {
+                return null;
+            }
+            try {
+                long nanos = in.readLong();
+                int client = in.readInt();
+                switch (kind) {
+                    case JOIN, MESSAGE:
+                        return new Record(kind, nanos, client, (ServerMessage) in.readObject(), null, null);
+                    case BOARD:
+                        String board = in.readUTF();
+                        return new Record(kind, nanos, client, null, board, in.readNBytes(in.readInt()));
+                    case LEAVE:
+                        return new Record(kind, nanos, client, null, null, null);
+                    case END:
+                        return null;
+                    default:
+                        throw new InvalidObjectException("Unknown record kind " + kind);
+                }
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
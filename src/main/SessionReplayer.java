@@ -0,0 +1,357 @@
+package main;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+//Luis Mauboy - 1684115
+//Replays a SessionRecorder file against a running WhiteboardServer: one
+//NetworkManager connection per recorded connection, joining, sending and
+//leaving at the recorded times divided by -speed (max sends as fast as the
+//sockets take it). Every message is restamped with System.nanoTime() so fan-out
+//latency is measured as in LoadGenerator. Before a connection leaves, every
+//connection waits for a user list round trip, so the server has processed
+//all they sent: closing a socket, or the manager leaving and closing the
+//board, would otherwise drop whatever the server had not read yet, and how
+//much that is depends on the replay speed. Afterwards each board the recording
+//ended with is fetched and compared with it, and the exit status is 1 if any
+//differ, so a replay can gate a build.
+//
+//  java -cp bin main.SessionReplayer -file session.rec [-host localhost] [-port 1234] [-speed 1|10|max]
+//        [-settle 5]
+//
+//Start the server empty (fresh boards and history directories). The server
+//merges finished strokes on its own clock, which a faster replay changes, so
+//boards are compared with each stroke reduced to its colour, width, layer and
+//extent rather than by segment.
+public class SessionReplayer {
+    private static final long QUIET_MILLIS = 500; //No traffic for this long means the replay has drained
+    private static final long SYNC_TIMEOUT_SECONDS = 10;
+    private static final int EXTENT_TOLERANCE = 1; //Pixels a merged stroke may lose to simplification
+
+    private final String host;
+    private final int port;
+    private final double speed;          //0 for as fast as possible
+    private final Map<Integer, ReplayedClient> clients = new HashMap<>();
+    private final Map<String, byte[]> finalBoards = new LinkedHashMap<>();
+    private final LatencyHistogram shapeLatency = new LatencyHistogram();
+    private final LatencyHistogram chatLatency = new LatencyHistogram();
+    private final LatencyHistogram lag = new LatencyHistogram(); //How far sends fell behind schedule
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private int connections;
+
+    public SessionReplayer(String host, int port, double speed) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+    }
+
+    //Replays the file and returns the number of boards that came out different
+    public int run(File file, long settleSeconds) throws Exception {
+        long begin;
+        long recorded = 0;
+        try (SessionRecorder.Reader reader = new SessionRecorder.Reader(file)) {
+            System.out.printf("Replaying %s, recorded %tF %<tT, at %s%n", file, reader.startedAt,
+                    speed > 0 ? speed + "x" : "maximum speed");
+            begin = System.nanoTime();
+            SessionRecorder.Record record;
+            while ((record = reader.next()) != null) {
+                if (record.kind == SessionRecorder.BOARD) {
+                    finalBoards.put(record.board, record.shapes);
+                    continue;
+                }
+                recorded = record.nanos;
+                if (speed > 0) {
+                    long due = begin + (long) (record.nanos / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } else {
+                        lag.record(-wait);
+                    }
+                }
+                replay(record);
+            }
+        }
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        drain(settleSeconds);
+        report(elapsed, recorded / 1e9);
+        for (ReplayedClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+        return checkBoards(settleSeconds);
+    }
+
+    private void replay(SessionRecorder.Record record) {
+        switch (record.kind) {
+            case SessionRecorder.JOIN:
+                ReplayedClient joining = new ReplayedClient();
+                try {
+                    joining.connect(record.message);
+                    clients.put(record.client, joining);
+                    connections++;
+                } catch (IOException e) {
+                    errors.increment();
+                    System.err.println(record.message.getJoinUsername() + " could not join: " + e.getMessage());
+                }
+                break;
+            case SessionRecorder.MESSAGE:
+                ReplayedClient client = clients.get(record.client);
+                if (client == null || !client.network.isConnected()) {
+                    skipped.increment(); //Its join failed, or the server already closed it
+                    return;
+                }
+                client.send(record.message);
+                break;
+            case SessionRecorder.LEAVE:
+                ReplayedClient leaving = clients.get(record.client);
+                if (leaving == null) return;
+                sync();
+                clients.remove(record.client);
+                leaving.close();
+                break;
+        }
+    }
+
+    //Waits until the server has processed everything sent so far on every connection
+    private void sync() {
+        List<ReplayedClient> waiting = new ArrayList<>();
+        for (ReplayedClient client : clients.values()) {
+            if (client.requestSync()) waiting.add(client);
+        }
+        for (ReplayedClient client : waiting) {
+            client.awaitSync();
+        }
+    }
+
+    //Waits until fan-out stops arriving, at most settleSeconds
+    private void drain(long settleSeconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(settleSeconds);
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            long now = received.sum();
+            if (now == last) return;
+            last = now;
+            Thread.sleep(QUIET_MILLIS);
+        }
+    }
+
+    private void report(double elapsedSeconds, double recordedSeconds) {
+        System.out.println();
+        System.out.printf("Duration:   %.1f s for %.1f s recorded, %d connections%n", elapsedSeconds, recordedSeconds, connections);
+        System.out.printf("Sent:       %d messages (%.0f msg/s), %d skipped%n", sent.sum(), sent.sum() / elapsedSeconds, skipped.sum());
+        System.out.printf("Received:   %d messages (%.0f msg/s)%n", received.sum(), received.sum() / elapsedSeconds);
+        System.out.printf("Errors:     %d%n", errors.sum());
+        System.out.println("Shape fan-out latency: " + shapeLatency.summary(1e6, "ms"));
+        System.out.println("Chat fan-out latency:  " + chatLatency.summary(1e6, "ms"));
+        if (speed > 0) {
+            System.out.println("Behind schedule:       " + lag.summary(1e6, "ms"));
+        }
+    }
+
+    //Joins each recorded board as an observer and compares what it gets
+    private int checkBoards(long settleSeconds) throws Exception {
+        if (finalBoards.isEmpty()) {
+            System.out.println("The recording has no final boards to compare");
+            return 0;
+        }
+        int different = 0;
+        for (Map.Entry<String, byte[]> board : finalBoards.entrySet()) {
+            ReplayedClient observer = new ReplayedClient();
+            List<ShapeData> replayed;
+            try {
+                observer.network.connect(host, port, "replay-check", board.getKey(), null);
+                replayed = observer.board.get(Math.max(settleSeconds, 10), TimeUnit.SECONDS);
+            } finally {
+                observer.close();
+            }
+            List<ShapeData> expected = BoardFile.decode(board.getValue());
+            String difference = compare(expected, replayed);
+            if (difference == null) {
+                System.out.printf("Board %s: equal (%d shapes recorded, %d replayed)%n", board.getKey(), expected.size(), replayed.size());
+            } else {
+                System.out.printf("Board %s: DIFFERENT, %s%n", board.getKey(), difference);
+                different++;
+            }
+        }
+        return different;
+    }
+
+    //Null if the boards hold the same drawing, else what differs first
+    static String compare(List<ShapeData> expected, List<ShapeData> actual) {
+        Map<Long, String> shapes = new HashMap<>();
+        Map<Long, int[]> strokes = new HashMap<>();
+        Map<Long, String> strokeStyles = new HashMap<>();
+        digest(expected, shapes, strokes, strokeStyles);
+        Map<Long, String> otherShapes = new HashMap<>();
+        Map<Long, int[]> otherStrokes = new HashMap<>();
+        Map<Long, String> otherStyles = new HashMap<>();
+        digest(actual, otherShapes, otherStrokes, otherStyles);
+
+        int missing = 0, extra = 0, changed = 0;
+        for (Map.Entry<Long, String> shape : shapes.entrySet()) {
+            String other = otherShapes.get(shape.getKey());
+            if (other == null) missing++;
+            else if (!other.equals(shape.getValue())) changed++;
+        }
+        for (Long id : otherShapes.keySet()) {
+            if (!shapes.containsKey(id)) extra++;
+        }
+        for (Map.Entry<Long, int[]> stroke : strokes.entrySet()) {
+            int[] other = otherStrokes.get(stroke.getKey());
+            if (other == null) missing++;
+            else if (!strokeStyles.get(stroke.getKey()).equals(otherStyles.get(stroke.getKey()))
+                    || !sameExtent(stroke.getValue(), other)) changed++;
+        }
+        for (Long id : otherStrokes.keySet()) {
+            if (!strokes.containsKey(id)) extra++;
+        }
+        if (missing + extra + changed == 0) return null;
+        return String.format("%d shapes or strokes missing, %d extra, %d changed", missing, extra, changed);
+    }
+
+    //Shapes by id; freehand segments and merged strokes folded into one extent per stroke
+    private static void digest(List<ShapeData> board, Map<Long, String> shapes, Map<Long, int[]> strokes,
+                               Map<Long, String> strokeStyles) {
+        for (ShapeData shape : board) {
+            if (shape.strokeId == 0) {
+                shapes.put(shape.id, shape.type + " " + shape.color.getRGB() + " " + shape.stroke + " " + shape.start
+                        + " " + shape.end + " " + shape.text + " " + Layers.of(shape)
+                        + " " + Arrays.toString(shape.xs) + " " + Arrays.toString(shape.ys));
+                continue;
+            }
+            strokeStyles.put(shape.strokeId, shape.type + " " + shape.color.getRGB() + " " + shape.stroke + " " + Layers.of(shape));
+            int[] extent = strokes.computeIfAbsent(shape.strokeId,
+                    k -> new int[] {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE});
+            if (shape.xs != null) {
+                for (int i = 0; i < shape.xs.length; i++) {
+                    include(extent, shape.xs[i], shape.ys[i]);
+                }
+            } else {
+                include(extent, shape.start.x, shape.start.y);
+                include(extent, shape.end.x, shape.end.y);
+            }
+        }
+    }
+
+    private static void include(int[] extent, int x, int y) {
+        extent[0] = Math.min(extent[0], x);
+        extent[1] = Math.min(extent[1], y);
+        extent[2] = Math.max(extent[2], x);
+        extent[3] = Math.max(extent[3], y);
+    }
+
+    private static boolean sameExtent(int[] a, int[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (Math.abs(a[i] - b[i]) > EXTENT_TOLERANCE) return false;
+        }
+        return true;
+    }
+
+    //One recorded connection
+    private class ReplayedClient implements WhiteboardListener {
+        private final NetworkManager network = new NetworkManager(this);
+        private final CompletableFuture<List<ShapeData>> board = new CompletableFuture<>();
+        private final Semaphore userLists = new Semaphore(0);
+
+        void connect(ServerMessage join) throws IOException {
+            Rectangle viewport = join.getJoinViewport();
+            network.connect(host, port, join.getJoinUsername(), join.getJoinBoard(), viewport);
+        }
+
+        void send(ServerMessage message) {
+            try {
+                network.sendMessage(new ServerMessage(message.getType(), message.getData(), System.nanoTime()));
+                sent.increment();
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+
+        boolean requestSync() {
+            if (!network.isConnected()) return false;
+            userLists.drainPermits();
+            try {
+                network.requestUserList();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        void awaitSync() {
+            try {
+                if (!userLists.tryAcquire(SYNC_TIMEOUT_SECONDS, TimeUnit.SECONDS) && network.isConnected()) {
+                    errors.increment();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void messageReceived(ServerMessage message) {
+            received.increment();
+            if (message.getType() == ServerMessage.MessageType.USER_LIST) {
+                userLists.release();
+            } else if (message.getType() == ServerMessage.MessageType.BOARD_SNAPSHOT) {
+                try {
+                    board.complete(BoardFile.decode(message.getBoardSnapshot()));
+                } catch (IOException e) {
+                    board.completeExceptionally(e);
+                }
+            } else if (message.getType() == ServerMessage.MessageType.ERROR) {
+                errors.increment();
+            }
+            if (message.getTimestamp() != 0) {
+                long latency = System.nanoTime() - message.getTimestamp();
+                if (message.getType() == ServerMessage.MessageType.SHAPE) {
+                    shapeLatency.record(latency);
+                } else if (message.getType() == ServerMessage.MessageType.CHAT_MESSAGE) {
+                    chatLatency.record(latency);
+                }
+            }
+        }
+
+        @Override
+        public void connectionLost(String reason) {
+            userLists.release(); //Nothing left to wait for
+            board.completeExceptionally(new IOException(reason));
+        }
+
+        void close() {
+            network.disconnect();
+        }
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        int status = 2;
+        try {
+            String file = options.get("-file");
+            if (file == null) {
+                System.err.println("Usage: SessionReplayer -file session.rec [-host localhost] [-port 1234] [-speed 1|10|max] [-settle 5]");
+            } else {
+                String speed = options.getOrDefault("-speed", "1");
+                SessionReplayer replayer = new SessionReplayer(
+                        options.getOrDefault("-host", "localhost"),
+                        Integer.parseInt(options.getOrDefault("-port", "1234")),
+                        speed.equals("max") ? 0 : Double.parseDouble(speed));
+                status = replayer.run(new File(file), Long.parseLong(options.getOrDefault("-settle", "5"))) == 0 ? 0 : 1;
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid option: " + e.getMessage());
+        } catch (Exception e) {
+            System.err.println("Replay failed: " + e);
+        }
+        System.exit(status);
+    }
+}
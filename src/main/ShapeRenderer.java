@@ -0,0 +1,134 @@
+package main;
+
+import java.awt.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+//Luis Mauboy - 1684115
+//Paints shapes without allocating per shape. Strokes are shared by width,
+//colours are interned as shapes arrive so a board holds one Color per colour,
+//colour and stroke are only set on the Graphics2D when they change, and
+//triangles use scratch arrays. Lines stay separate drawLine calls: Java2D
+//fills a wide line as one parallelogram, which measured several times faster
+//than stroking consecutive segments batched into a Path2D. A renderer keeps
+//scratch state for one painting thread at a time; the caches are shared.
+public class ShapeRenderer {
+    private static final int CACHED_WIDTHS = 256;   //Wider strokes are built on demand
+    private static final int MAX_COLORS = 4096;     //Interned colours, beyond which shapes keep their own
+    private static final float[] PREVIEW_DASH = {5.0f};
+
+    private static final AtomicReferenceArray<BasicStroke> strokes = new AtomicReferenceArray<>(CACHED_WIDTHS);
+    private static final AtomicReferenceArray<BasicStroke> previewStrokes = new AtomicReferenceArray<>(CACHED_WIDTHS);
+    private static final Map<Integer, Color> colors = new ConcurrentHashMap<>();
+
+    private final int[] triangleX = new int[3];
+    private final int[] triangleY = new int[3];
+    private Graphics2D g;
+    private Color color;        //Last set on g, null if unknown
+    private BasicStroke stroke;
+
+    //Shared colour equal to color, so a board's shapes hold one instance per colour
+    public static Color intern(Color color) {
+        if (color == null) return null;
+        Color known = colors.get(color.getRGB());
+        if (known == null && colors.size() < MAX_COLORS) {
+            known = colors.putIfAbsent(color.getRGB(), color);
+        }
+        return known != null ? known : color;
+    }
+
+    public static BasicStroke stroke(int width) {
+        return cached(strokes, width, false);
+    }
+
+    //Dashed outline of a shape still being dragged
+    public static BasicStroke previewStroke(int width) {
+        return cached(previewStrokes, width, true);
+    }
+
+    private static BasicStroke cached(AtomicReferenceArray<BasicStroke> cache, int width, boolean dashed) {
+        if (width < 0 || width >= CACHED_WIDTHS) return create(width, dashed);
+        BasicStroke stroke = cache.get(width);
+        if (stroke == null) {
+            stroke = create(width, dashed);
+            cache.set(width, stroke);
+        }
+        return stroke;
+    }
+
+    private static BasicStroke create(int width, boolean dashed) {
+        return dashed
+                ? new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 1.0f, PREVIEW_DASH, 0.0f)
+                : new BasicStroke(width);
+    }
+
+    //Starts painting on g, which nothing else may change until the pass is over
+    public void begin(Graphics2D g) {
+        this.g = g;
+        color = null;
+        stroke = null;
+    }
+
+    public void draw(ShapeData shape) {
+        setColor(shape.color);
+        setStroke(stroke(shape.stroke));
+        if (shape.xs != null) {
+            //Segment by segment, so caps and overlaps look as they did before merging
+            for (int i = 1; i < shape.xs.length; i++) {
+                g.drawLine(shape.xs[i - 1], shape.ys[i - 1], shape.xs[i], shape.ys[i]);
+            }
+            return;
+        }
+        paint(shape.type, shape.start, shape.end, shape.text);
+    }
+
+    //Outline of a shape being dragged out, without building a ShapeData
+    public void drawPreview(ToolType type, Color color, int width, Point start, Point end) {
+        setColor(color);
+        setStroke(previewStroke(width));
+        paint(type, start, end, null);
+    }
+
+    //One shape on g, for the odd shape drawn outside a paint pass
+    public void draw(Graphics2D g, ShapeData shape) {
+        begin(g);
+        draw(shape);
+    }
+
+    private void paint(ToolType type, Point start, Point end, String text) {
+        int x = Math.min(start.x, end.x);
+        int y = Math.min(start.y, end.y);
+        int w = Math.abs(start.x - end.x);
+        int h = Math.abs(start.y - end.y);
+        switch (type) {
+            case RECTANGLE -> g.drawRect(x, y, w, h);
+            case OVAL -> g.drawOval(x, y, w, h);
+            case TRIANGLE -> {
+                triangleX[0] = start.x;
+                triangleX[1] = end.x;
+                triangleX[2] = start.x - (end.x - start.x);
+                triangleY[0] = start.y;
+                triangleY[1] = end.y;
+                triangleY[2] = end.y;
+                g.drawPolygon(triangleX, triangleY, 3);
+            }
+            case TEXT -> g.drawString(text, start.x, start.y);
+            default -> g.drawLine(start.x, start.y, end.x, end.y);
+        }
+    }
+
+    //Graphics2D revalidates its pipeline on every set, even to the same value
+    private void setColor(Color c) {
+        if (c != color) {
+            g.setColor(c);
+            color = c;
+        }
+    }
+
+    private void setStroke(BasicStroke s) {
+        if (s != stroke) {
+            g.setStroke(s);
+            stroke = s;
+        }
+    }
+}
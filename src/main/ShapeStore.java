@@ -0,0 +1,281 @@
+package main;
+
+import java.awt.Rectangle;
+import java.util.*;
+//Luis Mauboy - 1684115
+//Board contents in drawing order. Shapes are addressed by id; deleting one
+//leaves a tombstone (a null slot) so delete and undo are O(1) and a restore
+//puts the shape back at its original depth. compact() drops the tombstones.
+//
+//Slots live in fixed-size chunks that are shared with snapshots and copied
+//on write, so snapshot() costs one pointer per chunk and readers (joins,
+//saves) never hold the lock while they walk the board.
+//
+//A store built with a spatial index also files every live shape in a
+//SpatialGrid, so the shapes in a region can be found without a full scan.
+public class ShapeStore {
+    //Compact once tombstones make up this share of the slots
+    private static final double COMPACT_RATIO = 0.25;
+    private static final int COMPACT_MIN_TOMBSTONES = 1024;
+    //Deleted ids still restorable after a compaction, the most recent kept; covers
+    //every client's undo stack, older restores are dropped like unknown ids
+    private static final int MAX_COMPACTED_TOMBSTONES = 1 << 16;
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private ShapeData[][] chunks = new ShapeData[0][];
+    private boolean[] shared = new boolean[0];  //Chunk is referenced by a snapshot
+    private int slotCount = 0;
+    private HashMap<Long, Integer> index = new HashMap<>();        //Live id -> slot
+    private LinkedHashMap<Long, Integer> tombstones = new LinkedHashMap<>(); //Deleted id -> slot, -1 once compacted away; oldest first
+    private final SpatialGrid grid; //Null unless spatially indexed
+
+    public ShapeStore() {
+        this(false);
+    }
+
+    public ShapeStore(boolean spatialIndex) {
+        grid = spatialIndex ? new SpatialGrid() : null;
+    }
+
+    //Immutable point-in-time view of the live shapes
+    public static class Snapshot implements Iterable<ShapeData> {
+        private final ShapeData[][] chunks;
+        private final int slotCount;
+        private final int size;
+
+        Snapshot(ShapeData[][] chunks, int slotCount, int size) {
+            this.chunks = chunks;
+            this.slotCount = slotCount;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public List<ShapeData> toList() {
+            List<ShapeData> list = new ArrayList<>(size);
+            for (ShapeData shape : this) list.add(shape);
+            return list;
+        }
+
+        @Override
+        public Iterator<ShapeData> iterator() {
+            return new Iterator<>() {
+                private int slot = advance(0);
+
+                private int advance(int from) {
+                    while (from < slotCount && chunks[from >>> CHUNK_BITS][from & (CHUNK_SIZE - 1)] == null) {
+                        from++;
+                    }
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return slot < slotCount;
+                }
+
+                @Override
+                public ShapeData next() {
+                    if (slot >= slotCount) throw new NoSuchElementException();
+                    ShapeData shape = chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+                    slot = advance(slot + 1);
+                    return shape;
+                }
+            };
+        }
+    }
+
+    //Appends a shape, assigning an id if it has none. Returns false for duplicates.
+    public synchronized boolean add(ShapeData shape) {
+        if (shape.id == 0) {
+            shape.id = ShapeData.nextId();
+        } else if (index.containsKey(shape.id)) {
+            return false;
+        }
+        tombstones.remove(shape.id);
+        int slot = slotCount++;
+        int chunk = slot >>> CHUNK_BITS;
+        if (chunk == chunks.length) {
+            chunks = Arrays.copyOf(chunks, chunk + 1);
+            shared = Arrays.copyOf(shared, chunk + 1);
+            chunks[chunk] = new ShapeData[CHUNK_SIZE];
+        }
+        //Slots past every snapshot's end are never read by it, so appends need no copy
+        chunks[chunk][slot & (CHUNK_SIZE - 1)] = shape;
+        index.put(shape.id, slot);
+        if (grid != null) grid.add(shape);
+        return true;
+    }
+
+    //Tombstones the given shapes and returns the ids that were actually live
+    public synchronized long[] delete(long[] ids) {
+        long[] deleted = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            Integer slot = index.remove(id);
+            if (slot != null) {
+                set(slot, null);
+                tombstones.put(id, slot);
+                if (grid != null) grid.remove(id);
+                deleted[count++] = id;
+            }
+        }
+        return Arrays.copyOf(deleted, count);
+    }
+
+    //Brings deleted shapes back, in place when the tombstone's slot still
+    //exists. Ids this store never deleted are dropped, so a restore cannot
+    //add shapes that skipped the SHAPE path.
+    public synchronized List<ShapeData> restore(List<ShapeData> shapes) {
+        return restore(shapes, true);
+    }
+
+    //History replay applies restores that were accepted live, even when the
+    //keyframe it started from no longer knows the deletion
+    synchronized List<ShapeData> restore(List<ShapeData> shapes, boolean deletedOnly) {
+        List<ShapeData> restored = new ArrayList<>();
+        for (ShapeData shape : shapes) {
+            if (shape.id == 0 || index.containsKey(shape.id)) continue;
+            Integer slot = tombstones.remove(shape.id);
+            if (slot == null && deletedOnly) continue;
+            if (slot != null && slot >= 0 && get(slot) == null) {
+                set(slot, shape);
+                index.put(shape.id, slot);
+                if (grid != null) grid.add(shape);
+            } else {
+                add(shape);
+            }
+            restored.add(shape);
+        }
+        return restored;
+    }
+
+    //Tombstones every shape on layer and returns their ids
+    public synchronized long[] deleteLayer(String layer) {
+        long[] ids = new long[index.size()];
+        int count = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            ShapeData shape = get(slot);
+            if (shape != null && Layers.of(shape).equals(layer)) {
+                ids[count++] = shape.id;
+            }
+        }
+        return delete(Arrays.copyOf(ids, count));
+    }
+
+    //Live shape with this id, or null
+    public synchronized ShapeData get(long id) {
+        Integer slot = index.get(id);
+        return slot != null ? get(slot) : null;
+    }
+
+    //Puts merged in the slot of the live shape with the same id and tombstones removed
+    public synchronized boolean merge(ShapeData merged, long[] removed) {
+        Integer slot = index.get(merged.id);
+        if (slot == null) return false;
+        set(slot, merged);
+        if (grid != null) grid.add(merged);
+        delete(removed);
+        return true;
+    }
+
+    public synchronized void clear() {
+        chunks = new ShapeData[0][];
+        shared = new boolean[0];
+        slotCount = 0;
+        index = new HashMap<>();
+        tombstones = new LinkedHashMap<>();
+        if (grid != null) grid.clear();
+    }
+
+    public synchronized void replaceAll(Collection<ShapeData> shapes) {
+        clear();
+        for (ShapeData shape : shapes) {
+            add(shape);
+        }
+    }
+
+    //O(chunks): later writes copy any chunk they touch below slotCount
+    public synchronized Snapshot snapshot() {
+        Arrays.fill(shared, true);
+        return new Snapshot(chunks.clone(), slotCount, index.size());
+    }
+
+    //Live shapes touching any tile in area (tile units), in drawing order;
+    //requires a spatially indexed store
+    public synchronized List<ShapeData> inRegion(Rectangle area) {
+        return inRegion(List.of(area));
+    }
+
+    public synchronized List<ShapeData> inRegion(List<Rectangle> areas) {
+        Set<Long> ids = new HashSet<>();
+        for (Rectangle area : areas) {
+            ids.addAll(grid.query(area));
+        }
+        List<Integer> slots = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            slots.add(index.get(id));
+        }
+        Collections.sort(slots);
+        List<ShapeData> shapes = new ArrayList<>(slots.size());
+        for (int slot : slots) {
+            shapes.add(get(slot));
+        }
+        return shapes;
+    }
+
+    //Tile range of a live shape, or null; requires a spatially indexed store
+    public synchronized Rectangle rangeOf(long id) {
+        return grid.range(id);
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized int tombstoneCount() {
+        return slotCount - index.size();
+    }
+
+    //Rewrites the slots without tombstones; restores after this append instead
+    public synchronized void compact() {
+        if (slotCount == index.size()) return;
+        Snapshot live = new Snapshot(chunks, slotCount, index.size());
+        Set<Long> deleted = tombstones.keySet();
+        int skip = deleted.size() - MAX_COMPACTED_TOMBSTONES;
+        clear();
+        for (ShapeData shape : live) {
+            add(shape);
+        }
+        for (long id : deleted) {
+            if (skip-- > 0) continue;
+            tombstones.put(id, -1);
+        }
+    }
+
+    public synchronized boolean compactIfNeeded() {
+        int dead = tombstoneCount();
+        if (dead >= COMPACT_MIN_TOMBSTONES && dead >= slotCount * COMPACT_RATIO) {
+            compact();
+            return true;
+        }
+        return false;
+    }
+
+    private ShapeData get(int slot) {
+        return chunks[slot >>> CHUNK_BITS][slot & (CHUNK_SIZE - 1)];
+    }
+
+    //In-place write below slotCount: copy the chunk first if a snapshot holds it
+    private void set(int slot, ShapeData shape) {
+        int chunk = slot >>> CHUNK_BITS;
+        if (shared[chunk]) {
+            chunks[chunk] = chunks[chunk].clone();
+            shared[chunk] = false;
+        }
+        chunks[chunk][slot & (CHUNK_SIZE - 1)] = shape;
+    }
+}
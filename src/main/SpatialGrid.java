@@ -0,0 +1,115 @@
+package main;
+
+import java.awt.Rectangle;
+import java.util.*;
+//Luis Mauboy - 1684115
+//Uniform grid over the board for interest management. Each shape is filed
+//under every TILE-pixel tile its bounds touch; a shape covering more than
+//MAX_TILES tiles is kept in a short list checked on every query instead.
+//Ranges are Rectangles in tile units, and the client computes the same
+//rangeOf(shape) to decide which of its shapes a tile update replaces.
+//Not thread-safe; ShapeStore guards it.
+public class SpatialGrid {
+    static final int TILE = 512;
+    private static final int MAX_TILES = 64;
+
+    private final Map<Long, Set<Long>> tiles = new HashMap<>();   //Tile key -> shape ids
+    private final Map<Long, Rectangle> ranges = new HashMap<>();  //Shape id -> tile range
+    private final Map<Long, Rectangle> large = new HashMap<>();   //Shapes over MAX_TILES tiles
+
+    //Tiles covered by the shape's drawn bounds
+    public static Rectangle rangeOf(ShapeData shape) {
+        return rangeOf(shape.getBounds());
+    }
+
+    //Tiles covered by an area in board coordinates
+    public static Rectangle rangeOf(Rectangle area) {
+        int x0 = Math.floorDiv(area.x, TILE);
+        int y0 = Math.floorDiv(area.y, TILE);
+        int x1 = Math.floorDiv(area.x + Math.max(area.width, 1) - 1, TILE);
+        int y1 = Math.floorDiv(area.y + Math.max(area.height, 1) - 1, TILE);
+        return new Rectangle(x0, y0, x1 - x0 + 1, y1 - y0 + 1);
+    }
+
+    //Parts of a not covered by b, at most four
+    public static List<Rectangle> subtract(Rectangle a, Rectangle b) {
+        Rectangle overlap = a.intersection(b);
+        if (overlap.isEmpty()) return List.of(a);
+        List<Rectangle> parts = new ArrayList<>(4);
+        if (overlap.y > a.y) parts.add(new Rectangle(a.x, a.y, a.width, overlap.y - a.y));
+        int bottom = overlap.y + overlap.height;
+        if (bottom < a.y + a.height) parts.add(new Rectangle(a.x, bottom, a.width, a.y + a.height - bottom));
+        if (overlap.x > a.x) parts.add(new Rectangle(a.x, overlap.y, overlap.x - a.x, overlap.height));
+        int right = overlap.x + overlap.width;
+        if (right < a.x + a.width) parts.add(new Rectangle(right, overlap.y, a.x + a.width - right, overlap.height));
+        return parts;
+    }
+
+    public void add(ShapeData shape) {
+        remove(shape.id); //A merge files the same id under its new bounds
+        Rectangle range = rangeOf(shape);
+        ranges.put(shape.id, range);
+        if ((long) range.width * range.height > MAX_TILES) {
+            large.put(shape.id, range);
+            return;
+        }
+        for (int x = range.x; x < range.x + range.width; x++) {
+            for (int y = range.y; y < range.y + range.height; y++) {
+                tiles.computeIfAbsent(key(x, y), k -> new HashSet<>()).add(shape.id);
+            }
+        }
+    }
+
+    public void remove(long id) {
+        Rectangle range = ranges.remove(id);
+        if (range == null || large.remove(id) != null) return;
+        for (int x = range.x; x < range.x + range.width; x++) {
+            for (int y = range.y; y < range.y + range.height; y++) {
+                long key = key(x, y);
+                Set<Long> ids = tiles.get(key);
+                if (ids != null && ids.remove(id) && ids.isEmpty()) {
+                    tiles.remove(key);
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        tiles.clear();
+        ranges.clear();
+        large.clear();
+    }
+
+    //Tile range of a filed shape, or null
+    public Rectangle range(long id) {
+        return ranges.get(id);
+    }
+
+    //Ids of shapes touching any tile in area (tile units)
+    public Set<Long> query(Rectangle area) {
+        Set<Long> found = new HashSet<>();
+        if ((long) area.width * area.height > tiles.size()) {
+            //Zoomed far out: cheaper to walk the occupied tiles
+            for (Map.Entry<Long, Set<Long>> tile : tiles.entrySet()) {
+                if (area.contains((int) (tile.getKey() >> 32), (int) (long) tile.getKey())) {
+                    found.addAll(tile.getValue());
+                }
+            }
+        } else {
+            for (int x = area.x; x < area.x + area.width; x++) {
+                for (int y = area.y; y < area.y + area.height; y++) {
+                    Set<Long> ids = tiles.get(key(x, y));
+                    if (ids != null) found.addAll(ids);
+                }
+            }
+        }
+        for (Map.Entry<Long, Rectangle> shape : large.entrySet()) {
+            if (shape.getValue().intersects(area)) found.add(shape.getKey());
+        }
+        return found;
+    }
+
+    private static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+}
@@ -0,0 +1,148 @@
+package main;
+
+import java.awt.Point;
+import java.util.*;
+//Luis Mauboy - 1684115
+//Merges the two-point segments of finished freehand strokes into single
+//polyline shapes. Segments are grouped by strokeId, chained where one ends
+//where the next starts, stripped of zero-length steps and simplified with
+//Douglas-Peucker within TOLERANCE pixels. The merged shape keeps the first
+//segment's id, so clients' undo/redo (which send every segment id) still work.
+//Board thread only.
+public class StrokeCompactor {
+    private static final double TOLERANCE = 0.5;     //Max deviation in pixels
+    private static final long IDLE_MILLIS = 2000;    //A stroke this quiet is finished
+
+    private final Map<Long, Stroke> pending = new HashMap<>();
+
+    private static class Stroke {
+        final List<Long> segments = new ArrayList<>();
+        long lastAt;
+    }
+
+    //Called for every shape added to the board
+    public void added(ShapeData shape, long now) {
+        if (shape.strokeId == 0 || shape.xs != null || shape.type != ToolType.PENCIL) {
+            return;
+        }
+        Stroke stroke = pending.computeIfAbsent(shape.strokeId, id -> new Stroke());
+        stroke.segments.add(shape.id);
+        stroke.lastAt = now;
+    }
+
+    public void clear() {
+        pending.clear();
+    }
+
+    //Merges strokes idle since IDLE_MILLIS; returns the merges to apply and broadcast
+    public List<ServerMessage.MergedShapes> compact(ShapeStore board, long now) {
+        List<ServerMessage.MergedShapes> merges = new ArrayList<>();
+        Iterator<Stroke> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Stroke stroke = iterator.next();
+            if (now - stroke.lastAt < IDLE_MILLIS) continue;
+            iterator.remove();
+            List<ShapeData> run = new ArrayList<>();
+            for (long id : stroke.segments) {
+                ShapeData segment = board.get(id); //Null if erased or undone meanwhile
+                if (segment == null) continue;
+                if (!run.isEmpty() && !continues(run.get(run.size() - 1), segment)) {
+                    merge(run, merges);
+                    run = new ArrayList<>();
+                }
+                run.add(segment);
+            }
+            merge(run, merges);
+        }
+        return merges;
+    }
+
+    private static boolean continues(ShapeData previous, ShapeData next) {
+        return previous.end.equals(next.start) && previous.type == next.type
+                && previous.stroke == next.stroke && previous.color.equals(next.color)
+                && Objects.equals(previous.layer, next.layer);
+    }
+
+    private void merge(List<ShapeData> run, List<ServerMessage.MergedShapes> merges) {
+        if (run.size() < 2) return;
+        int[] xs = new int[run.size() + 1];
+        int[] ys = new int[run.size() + 1];
+        int count = 0;
+        xs[count] = run.get(0).start.x;
+        ys[count++] = run.get(0).start.y;
+        for (ShapeData segment : run) {
+            if (segment.end.x != xs[count - 1] || segment.end.y != ys[count - 1]) { //Drop zero-length steps
+                xs[count] = segment.end.x;
+                ys[count++] = segment.end.y;
+            }
+        }
+        if (count < 2) return; //A dot, keep the original segment
+
+        boolean[] keep = simplify(xs, ys, count);
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                xs[kept] = xs[i];
+                ys[kept++] = ys[i];
+            }
+        }
+        ShapeData first = run.get(0);
+        ShapeData merged = new ShapeData(first.type, first.color, first.stroke,
+                new Point(xs[0], ys[0]), new Point(xs[kept - 1], ys[kept - 1]));
+        merged.id = first.id;
+        merged.strokeId = first.strokeId;
+        merged.layer = first.layer;
+        merged.xs = Arrays.copyOf(xs, kept);
+        merged.ys = Arrays.copyOf(ys, kept);
+        long[] removed = new long[run.size() - 1];
+        for (int i = 1; i < run.size(); i++) {
+            removed[i - 1] = run.get(i).id;
+        }
+        merges.add(new ServerMessage.MergedShapes(merged, removed));
+    }
+
+    //Douglas-Peucker, iterative; marks the points to keep
+    private static boolean[] simplify(int[] xs, int[] ys, int count) {
+        boolean[] keep = new boolean[count];
+        keep[0] = keep[count - 1] = true;
+        int[] stack = new int[2 * count];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        double tolerance2 = TOLERANCE * TOLERANCE;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            double dx = xs[last] - xs[first];
+            double dy = ys[last] - ys[first];
+            double length2 = dx * dx + dy * dy;
+            double worst = 0;
+            int worstIndex = -1;
+            for (int i = first + 1; i < last; i++) {
+                double px = xs[i] - xs[first];
+                double py = ys[i] - ys[first];
+                double distance2;
+                if (length2 == 0) {
+                    distance2 = px * px + py * py; //Closed loop: distance to the endpoint
+                } else {
+                    double t = Math.max(0, Math.min(1, (px * dx + py * dy) / length2));
+                    double ex = px - t * dx;
+                    double ey = py - t * dy;
+                    distance2 = ex * ex + ey * ey;
+                }
+                if (distance2 > worst) {
+                    worst = distance2;
+                    worstIndex = i;
+                }
+            }
+            if (worst > tolerance2) {
+                keep[worstIndex] = true;
+                stack[top++] = first;
+                stack[top++] = worstIndex;
+                stack[top++] = worstIndex;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+}
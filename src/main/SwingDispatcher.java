@@ -0,0 +1,68 @@
+package main;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.SwingUtilities;
+//Luis Mauboy - 1684115
+//Queues inbound messages and drains them in batches on the EDT, so a burst of
+//remote pencil segments costs one invokeLater and one repaint instead of one each
+class SwingDispatcher implements WhiteboardListener {
+    //Upper bound per EDT turn so input events still get a look in during floods
+    private static final int MAX_BATCH = 2048;
+
+    private final WhiteboardFrame frame;
+    private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private static class Pending {
+        final ServerMessage message;
+        final long receivedAt;
+
+        Pending(ServerMessage message, long receivedAt) {
+            this.message = message;
+            this.receivedAt = receivedAt;
+        }
+    }
+
+    SwingDispatcher(WhiteboardFrame frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public void messageReceived(ServerMessage message) {
+        queue.add(new Pending(message, System.nanoTime()));
+        if (scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+
+    @Override
+    public void connectionLost(String reason) {
+        SwingUtilities.invokeLater(() -> frame.showError("Connection lost: " + reason));
+    }
+
+    //Runs on the EDT
+    private void drain() {
+        scheduled.set(false);
+        frame.beginBatch();
+        try {
+            Pending pending;
+            for (int i = 0; i < MAX_BATCH && (pending = queue.poll()) != null; i++) {
+                WhiteboardEvents.ClientDispatch event = new WhiteboardEvents.ClientDispatch();
+                event.begin();
+                frame.processMessage(pending.message);
+                if (event.shouldCommit()) {
+                    event.messageType = pending.message.getType().name();
+                    event.queueDelay = System.nanoTime() - pending.receivedAt;
+                    event.commit();
+                }
+            }
+        } finally {
+            frame.endBatch();
+        }
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::drain);
+        }
+    }
+}
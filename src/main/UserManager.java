@@ -3,59 +3,93 @@ package main;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 //Luis Mauboy - 1684115
+//Connected users. Reads never lock; changes come from the server's board
+//thread one at a time, and each bumps the presence version that clients use
+//to apply USER_PRESENCE deltas in order.
 public class UserManager implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final int MAX_NAME_LENGTH = 64;
     private final Map<String, Boolean> users = new ConcurrentHashMap<>();
-    private String manager;
+    private final AtomicLong version = new AtomicLong();
+    private volatile String manager;
     
-    //Add a new user to the system
-    public synchronized boolean addUser(String username, boolean isManager) {
+    //Checked when a client joins, so addUser never sees a bad name
+    public static boolean isValidName(String username) {
+        return username != null && !username.trim().isEmpty() && username.length() <= MAX_NAME_LENGTH;
+    }
+    
+    //Add a new user to the system. Returns the version of the previous
+    //manager's demotion if this user took over from one still connected,
+    //0 if nobody was demoted, or -1 if the name is already taken
+    public long addUser(String username, boolean isManager) {
         if (username == null || username.trim().isEmpty()) {
             throw new IllegalArgumentException("Username cannot be empty");
         }
-        if (users.containsKey(username)) {
-            return false;
+        if (users.putIfAbsent(username, isManager) != null) {
+            return -1;
         }
-        
-        users.put(username, isManager);
+        long demoted = 0;
         if (isManager) {
-        	if (manager != null && !manager.equals(username)) {
-        		users.put(manager, false);
+        	String previous = manager;
+        	if (previous != null && !previous.equals(username) && users.replace(previous, true, false)) {
+        		demoted = version.incrementAndGet(); //Role change of the old manager
         	}
             manager = username;
         }
-        return true;
+        version.incrementAndGet();
+        return demoted;
     }
     
     //Remove a user from the system
-    public synchronized void removeUser(String username) {
-        if (username == null) return;
-        users.remove(username);
+    public boolean removeUser(String username) {
+        if (username == null || users.remove(username) == null) {
+        	return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+    
+    //Everyone leaves at once, e.g. when the board's manager disconnects
+    public void clear() {
+        users.clear();
+        manager = null;
+        version.incrementAndGet();
     }
     
     //Checks if a user is the manager
-    public synchronized boolean isManager(String username) {
+    public boolean isManager(String username) {
         return username != null && username.equals(manager);
     }
     
     //Gets a list of all connected users
-    public synchronized List<String> getUsers() {
+    public List<String> getUsers() {
         return new ArrayList<>(users.keySet());
     }
     
+    //Full list for a joining or resyncing client, tagged with the version it reflects
+    public ServerMessage.UserList snapshot() {
+        return new ServerMessage.UserList(version.get(), getUsers(), manager);
+    }
+    
+    //Number of changes so far; the version of the latest delta
+    public long getVersion() {
+        return version.get();
+    }
+    
     //Gets the current manager's username
-    public synchronized String getManagerUsername() {
+    public String getManagerUsername() {
         return manager;
     }
     
     //Gets the number of connected users
-    public synchronized int getUserCount() {
+    public int getUserCount() {
         return users.size();
     }
  
     //Checks if a username exists
-    public synchronized boolean containsUser(String username) {
+    public boolean containsUser(String username) {
         return users.containsKey(username);
     }
-}
\ No newline at end of file
+}
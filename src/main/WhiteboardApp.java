@@ -1,12 +1,20 @@
 package main;
 
 import javax.swing.*;
+import javax.swing.event.MenuEvent;
+import javax.swing.event.MenuListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.security.SecureRandom;
+import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 //Luis Mauboy - 1684115
 public class WhiteboardApp {
     public static void main(String[] args) {
@@ -14,15 +22,18 @@ public class WhiteboardApp {
         String username = JOptionPane.showInputDialog("Enter your username:");
         String serverIP = JOptionPane.showInputDialog("Enter server IP:", "localhost");
         int port = Integer.parseInt(JOptionPane.showInputDialog("Enter port:", "1234"));
+        String board = JOptionPane.showInputDialog("Enter board name:", "main");
         
         //Initialize GUI
         SwingUtilities.invokeLater(() -> {
             WhiteboardFrame frame = new WhiteboardFrame(username);
+            //Shown first so the canvas is laid out; input waits behind this task on the EDT
+            frame.setVisible(true);
             try {
-                NetworkManager networkManager = new NetworkManager(frame);
-                networkManager.connect(serverIP, port, username);
+                NetworkManager networkManager = new NetworkManager(new SwingDispatcher(frame));
+                //The first snapshot covers what the canvas shows, not the whole frame
+                networkManager.connect(serverIP, port, username, board, frame.getCanvas().getViewport());
                 frame.setNetworkManager(networkManager);
-                frame.setVisible(true);
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(null, "Connection failed: " + e.getMessage());
                 System.exit(1);
@@ -41,12 +52,29 @@ class WhiteboardFrame extends JFrame {
     private ToolType currentTool = ToolType.PENCIL;
     
     //Chat components
-    private JTextArea chatArea;
+    private static final int MAX_CHAT_LINES = 500;
+    private DefaultListModel<String> chatModel;
+    private JList<String> chatList;
+    private JButton olderChatButton;
     private JTextField chatInput;
+    private long oldestChatSeq = -1; //Server sequence number of the top line
+    private boolean moreChatHistory = false;
     
     //User list
     private DefaultListModel<String> userListModel;
     private JList<String> userList;
+    private long presenceVersion = -1;       //Version of the list shown, -1 until the first USER_LIST
+    private boolean presenceResyncPending = false;
+    private final Map<String, ServerMessage.Quality> connectionQuality = new HashMap<>(); //Manager only
+    
+    //Server status (save progress etc.)
+    private JLabel statusLabel;
+    
+    //History playback: live board changes are ignored until the server ends it
+    private boolean playback = false;
+    private long playbackTime;
+    private File pendingSave; //Written once the server sends the whole board
+    private double playbackSpeed = 10;
     
     public WhiteboardFrame(String username) {
     	this.username = username;
@@ -85,12 +113,20 @@ class WhiteboardFrame extends JFrame {
         //User list
         userListModel = new DefaultListModel<>();
         userList = new JList<>(userListModel);
+        userList.setCellRenderer(new UserCellRenderer());
         rightPanel.add(new JScrollPane(userList), BorderLayout.NORTH);
         
-        //Chat area
-        chatArea = new JTextArea();
-        chatArea.setEditable(false);
-        rightPanel.add(new JScrollPane(chatArea), BorderLayout.CENTER);
+        //Chat area (fixed cell height lets JList render only the visible rows)
+        chatModel = new DefaultListModel<>();
+        chatList = new JList<>(chatModel);
+        chatList.setFixedCellHeight(chatList.getFontMetrics(chatList.getFont()).getHeight() + 2);
+        olderChatButton = new JButton("Load older messages");
+        olderChatButton.setEnabled(false);
+        olderChatButton.addActionListener(e -> requestOlderChat());
+        JPanel chatPanel = new JPanel(new BorderLayout());
+        chatPanel.add(olderChatButton, BorderLayout.NORTH);
+        chatPanel.add(new JScrollPane(chatList), BorderLayout.CENTER);
+        rightPanel.add(chatPanel, BorderLayout.CENTER);
         
         //Chat input
         JPanel chatInputPanel = new JPanel(new BorderLayout());
@@ -105,6 +141,10 @@ class WhiteboardFrame extends JFrame {
         rightPanel.add(chatInputPanel, BorderLayout.SOUTH);
         add(rightPanel, BorderLayout.EAST);
         
+        //Status bar
+        statusLabel = new JLabel(" ");
+        add(statusLabel, BorderLayout.SOUTH);
+        
         //Toolbar
         setupToolbar();
     }
@@ -132,6 +172,14 @@ class WhiteboardFrame extends JFrame {
             }
         });
         
+        //Layer new shapes go on; "mine" is this user's own layer
+        String[] layerChoices = {Layers.DRAWING, Layers.BACKGROUND, Layers.ANNOTATIONS, "mine"};
+        JComboBox<String> layerBox = new JComboBox<>(layerChoices);
+        layerBox.addActionListener(e -> {
+            String selected = (String) layerBox.getSelectedItem();
+            canvas.setLayer("mine".equals(selected) ? Layers.userLayer(username) : selected);
+        });
+        
         //Size selector
         JComboBox<Integer> sizeBox = new JComboBox<>(new Integer[]{4, 6, 8, 10});
         sizeBox.addActionListener(e -> canvas.setStrokeSize((Integer) sizeBox.getSelectedItem()));
@@ -151,11 +199,26 @@ class WhiteboardFrame extends JFrame {
         	}
         });
         
+        //Undo/redo of this user's own edits
+        JButton undoBtn = new JButton("Undo");
+        undoBtn.addActionListener(e -> canvas.undo());
+        JButton redoBtn = new JButton("Redo");
+        redoBtn.addActionListener(e -> canvas.redo());
+        JRootPane root = getRootPane();
+        root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("control Z"), "undo");
+        root.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("control Y"), "redo");
+        root.getActionMap().put("undo", createAction(canvas::undo));
+        root.getActionMap().put("redo", createAction(canvas::redo));
+        
         toolBar.add(toolBox);
         toolBar.add(colorBtn);
         toolBar.add(new JLabel(" Size:"));
         toolBar.add(sizeBox);
+        toolBar.add(new JLabel(" Layer:"));
+        toolBar.add(layerBox);
         toolBar.add(clearBtn);
+        toolBar.add(undoBtn);
+        toolBar.add(redoBtn);
         
         add(toolBar, BorderLayout.NORTH);
     }
@@ -177,8 +240,59 @@ class WhiteboardFrame extends JFrame {
     		userMenu.add(createMenuItem("Kick User", e -> kickUser()));
     		menuBar.add(userMenu);
     	}
+    	
+    	//History menu
+    	JMenu historyMenu = new JMenu("History");
+    	historyMenu.add(createMenuItem("Play History...", e -> playHistory()));
+    	historyMenu.add(createMenuItem("Show Board At...", e -> showBoardAt()));
+    	historyMenu.add(createMenuItem("Playback Speed...", e -> changePlaybackSpeed()));
+    	historyMenu.add(createMenuItem("Return to Live", e -> returnToLive()));
+    	if (isManager) {
+    		historyMenu.addSeparator();
+    		historyMenu.add(createMenuItem("Restore Board To...", e -> restoreHistory()));
+    	}
+    	//Layers menu, rebuilt each time it opens since other users add layers
+    	JMenu layerMenu = new JMenu("Layers");
+    	layerMenu.addMenuListener(new MenuListener() {
+    		public void menuSelected(MenuEvent e) {
+    			buildLayerMenu(layerMenu);
+    		}
+    		public void menuDeselected(MenuEvent e) { }
+    		public void menuCanceled(MenuEvent e) { }
+    	});
     	setJMenuBar(menuBar);
     	menuBar.add(fileMenu);
+    	menuBar.add(historyMenu);
+    	menuBar.add(layerMenu);
+    }
+    
+    private void buildLayerMenu(JMenu menu) {
+    	menu.removeAll();
+    	for (String layer : canvas.getLayerNames()) {
+    		JCheckBoxMenuItem item = new JCheckBoxMenuItem(layer, canvas.isLayerVisible(layer));
+    		item.addActionListener(e -> canvas.setLayerVisible(layer, item.isSelected()));
+    		menu.add(item);
+    	}
+    	if (menu.getItemCount() > 0) menu.addSeparator();
+    	menu.add(createMenuItem("Clear Layer \"" + canvas.getLayer() + "\"", e -> clearLayer()));
+    }
+    
+    //Applied when the server echoes it, so a refused clear changes nothing
+    private void clearLayer() {
+    	try {
+    		networkManager.sendMessage(new ServerMessage(ServerMessage.MessageType.LAYER_CLEAR, canvas.getLayer()));
+    	} catch (IOException ex) {
+    		showError("Failed to clear layer");
+    	}
+    }
+    
+    private static Action createAction(Runnable runnable) {
+    	return new AbstractAction() {
+    		@Override
+    		public void actionPerformed(ActionEvent e) {
+    			runnable.run();
+    		}
+    	};
     }
     
     private JMenuItem createMenuItem(String text, ActionListener action) {
@@ -187,60 +301,125 @@ class WhiteboardFrame extends JFrame {
     	return item;
     }
     
+    //Called on the EDT by SwingDispatcher, bracketed by beginBatch/endBatch
     public void processMessage(ServerMessage message) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                switch (message.getType()) {
-                    case SHAPE:
-                        canvas.addShape(message.getShape());
-                        break;
-                    case CLEAR_CANVAS:
-                        canvas.clear();
-                        break;
-                    case CHAT_MESSAGE:
-                        addChatMessage(message.getChatMessage());
-                        break;
-                    case JOIN_REQUEST:
-                        if (isManager) {
-                            boolean approved = showApprovalDialog(message.getUsername());
-                            networkManager.sendApprovalResponse(approved, message.getUsername());
-                        }
-                        break;
-                    case USER_LIST:
-                        updateUserList(message.getUserList());
-                        break;
-                    case ASSIGN_MANAGER:
-                        setManagerPrivileges(true);
-                        break;
-                    case KICK_NOTIFICATION:
-                        JOptionPane.showMessageDialog(this, "You have been kicked by the manager", "Disconnected", JOptionPane.WARNING_MESSAGE);
-                        System.exit(0);
-                        break;
-                    case APPROVAL_RESPONSE:
-                    	if (message.isApproved()) {
-                    		//Handle successful approval
-                    	} else {
-                    		showError("Your join request was denied");
-                    		System.exit(0);
-                    	}
-                    	break;
-                    case FILE_DATA:
-                        canvas.loadShapes(message.getShapes());
-                        break;
-                    case ERROR:
-                        showError(message.getErrorText());
-                        break;
-                    case SERVER_SHUTDOWN:
-                    	JOptionPane.showMessageDialog(this, "Manager disconnected. Application will close.", "Server Shutdown", JOptionPane.WARNING_MESSAGE);
-                    	System.exit(0);
-                    	break;
-                    default:
-                        System.err.println("Unknown message type: " + message.getType());
-                }
-            } catch (Exception e) {
-                showError("Error processing message: " + e.getMessage());
+        try {
+            switch (message.getType()) {
+                case SHAPE:
+                case CLEAR_CANVAS:
+                case DELETE_SHAPES:
+                case RESTORE_SHAPES:
+                case MERGE_SHAPES:
+                case FILE_DATA:
+                case TILE_DATA:
+                case LAYER_CLEAR:
+                    if (!playback) {
+                        applyBoardOperation(message);
+                    }
+                    break;
+                case BOARD_SNAPSHOT:
+                    canvas.loadShapes(BoardFile.decode(message.getBoardSnapshot()));
+                    statusLabel.setText(" ");
+                    break;
+                case BOARD_DOWNLOAD:
+                    finishSave(message.getBoardDownload());
+                    break;
+                case JOIN_STATUS:
+                    statusLabel.setText("Waiting to join: " + message.getJoinQueuePosition() + " ahead of you");
+                    break;
+                case PLAYBACK_FRAME:
+                    ServerMessage frame = message.getFrame();
+                    playbackTime = frame.getTimestamp();
+                    applyBoardOperation(frame);
+                    statusLabel.setText("History: " + new Date(playbackTime));
+                    break;
+                case PLAYBACK_END:
+                    setPlayback(false);
+                    statusLabel.setText("Live board");
+                    break;
+                case CHAT_MESSAGE:
+                    addChatMessage(message.getChatMessage());
+                    break;
+                case CHAT_HISTORY:
+                    addChatHistory(message.getChatPage());
+                    break;
+                case JOIN_REQUEST:
+                    if (isManager) {
+                        boolean approved = showApprovalDialog(message.getUsername());
+                        networkManager.sendApprovalResponse(approved, message.getUsername());
+                    }
+                    break;
+                case USER_LIST:
+                    updateUserList(message.getUserList());
+                    break;
+                case USER_PRESENCE:
+                    applyPresence(message.getPresence());
+                    break;
+                case CONNECTION_QUALITY:
+                    connectionQuality.clear();
+                    for (ServerMessage.Quality quality : message.getQualities()) {
+                        connectionQuality.put(quality.username, quality);
+                    }
+                    userList.repaint();
+                    break;
+                case ASSIGN_MANAGER:
+                    setManagerPrivileges(true);
+                    break;
+                case KICK_NOTIFICATION:
+                    JOptionPane.showMessageDialog(this, "You have been kicked by the manager", "Disconnected", JOptionPane.WARNING_MESSAGE);
+                    System.exit(0);
+                    break;
+                case APPROVAL_RESPONSE:
+                	if (message.isApproved()) {
+                		//Handle successful approval
+                	} else {
+                		showError("Your join request was denied");
+                		System.exit(0);
+                	}
+                	break;
+                case SAVE_RESPONSE:
+                    statusLabel.setText(String.valueOf(message.getData()));
+                    break;
+                case ERROR:
+                    showError(message.getErrorText());
+                    break;
+                case MANAGER_DISCONNECT:
+                	JOptionPane.showMessageDialog(this, "Manager disconnected. Application will close.", "Board Closed", JOptionPane.WARNING_MESSAGE);
+                	System.exit(0);
+                	break;
+                	
+                case SERVER_SHUTDOWN:
+                	JOptionPane.showMessageDialog(this, "Server is shutting down. Application will close.", "Server Shutdown", JOptionPane.WARNING_MESSAGE);
+                	System.exit(0);
+                	break;
+                default:
+                    System.err.println("Unknown message type: " + message.getType());
             }
-        });
+        } catch (Exception e) {
+            showError("Error processing message: " + e.getMessage());
+        }
+    }
+    
+    private void applyBoardOperation(ServerMessage message) {
+        switch (message.getType()) {
+            case SHAPE -> canvas.addShape(message.getShape());
+            case CLEAR_CANVAS -> canvas.clear();
+            case DELETE_SHAPES -> canvas.removeShapes(message.getShapeIds());
+            case RESTORE_SHAPES -> canvas.restoreShapes(message.getShapes());
+            case MERGE_SHAPES -> canvas.mergeShapes(message.getMergedShapes());
+            case FILE_DATA -> canvas.loadShapes(message.getShapes());
+            case TILE_DATA -> canvas.loadTiles(message.getTiles());
+            case LAYER_CLEAR -> canvas.clearLayer(message.getLayer());
+            default -> { }
+        }
+    }
+    
+    public void beginBatch() {
+    	canvas.setDeferRepaint(true);
+    }
+    
+    public void endBatch() {
+    	canvas.setDeferRepaint(false);
     }
     
     public void setNetworkManager(NetworkManager networkManager) {
@@ -263,14 +442,96 @@ class WhiteboardFrame extends JFrame {
     }
     
     public void addChatMessage(String message) {
-        chatArea.append(message + "\n");
+        chatModel.addElement(message);
+        int excess = chatModel.size() - MAX_CHAT_LINES;
+        if (excess > 0) {
+        	chatModel.removeRange(0, excess - 1);
+        	oldestChatSeq += excess;
+        	moreChatHistory = true;
+        }
+        chatList.ensureIndexIsVisible(chatModel.size() - 1);
+        updateOlderChatButton();
     }
     
-    public void updateUserList(List<String> users) {
-    	SwingUtilities.invokeLater(() -> {
-    		userListModel.clear();
-        	users.forEach(userListModel::addElement);
-    	});
+    //Inserts a page of older lines above the current ones, within MAX_CHAT_LINES
+    public void addChatHistory(ServerMessage.ChatPage page) {
+    	int room = MAX_CHAT_LINES - chatModel.size();
+    	int skip = Math.max(0, page.messages.size() - room);
+    	List<String> lines = page.messages.subList(skip, page.messages.size());
+    	for (int i = 0; i < lines.size(); i++) {
+    		chatModel.add(i, lines.get(i));
+    	}
+    	boolean initial = oldestChatSeq < 0;
+    	oldestChatSeq = page.firstSeq + skip;
+    	moreChatHistory = page.hasMore || skip > 0;
+    	if (initial && !chatModel.isEmpty()) {
+    		chatList.ensureIndexIsVisible(chatModel.size() - 1);
+    	}
+    	updateOlderChatButton();
+    }
+    
+    private void updateOlderChatButton() {
+    	olderChatButton.setEnabled(moreChatHistory && chatModel.size() < MAX_CHAT_LINES);
+    }
+    
+    private void requestOlderChat() {
+    	try {
+    		networkManager.requestChatHistory(oldestChatSeq);
+    		olderChatButton.setEnabled(false); //Re-enabled when the page arrives
+    	} catch (IOException e) {
+    		showError("Failed to load chat history");
+    	}
+    }
+    
+    public void updateUserList(ServerMessage.UserList list) {
+    	if (list.version < presenceVersion) return; //Older than the deltas already applied
+    	presenceVersion = list.version;
+    	presenceResyncPending = false;
+    	userListModel.clear();
+    	list.users.forEach(userListModel::addElement);
+    }
+    
+    //Names, with each user's round trip for the manager; stalled users in red
+    private class UserCellRenderer extends DefaultListCellRenderer {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean selected, boolean focused) {
+            super.getListCellRendererComponent(list, value, index, selected, focused);
+            ServerMessage.Quality quality = connectionQuality.get(value);
+            setToolTipText(null);
+            if (quality != null) {
+                if (quality.stalled) {
+                    setText(value + "  (not responding)");
+                    if (!selected) setForeground(Color.RED);
+                } else {
+                    setText(String.format("%s  %d ms", value, quality.roundTripP50Micros / 1000));
+                }
+                setToolTipText(String.format("Round trip p50 %.1f ms, p99 %.1f ms; server queue p99 %.1f ms",
+                        quality.roundTripP50Micros / 1e3, quality.roundTripP99Micros / 1e3, quality.queueDelayP99Micros / 1e3));
+            }
+            return this;
+        }
+    }
+    
+    //Applies one join or leave in place; asks for the full list if a version was missed
+    private void applyPresence(ServerMessage.Presence presence) throws IOException {
+    	if (presence.version <= presenceVersion) return; //Already in the list
+    	if (presenceVersion < 0 || presence.version != presenceVersion + 1) {
+    		if (presenceVersion >= 0 && !presenceResyncPending) {
+    			presenceResyncPending = true;
+    			networkManager.requestUserList();
+    		}
+    		return;
+    	}
+    	presenceVersion = presence.version;
+    	switch (presence.change) {
+    		case JOINED -> {
+    			if (!userListModel.contains(presence.username)) userListModel.addElement(presence.username);
+    		}
+    		case LEFT -> userListModel.removeElement(presence.username);
+    		case ROLE_CHANGED -> { } //The list shows names only
+    	}
     }
     
     public boolean showApprovalDialog(String requestingUser) {
@@ -291,18 +552,34 @@ class WhiteboardFrame extends JFrame {
         }
     }
     
+    //The canvas only holds the shapes in view, so the whole board is fetched first
     public void saveWhiteboard() {
     	JFileChooser fc = new JFileChooser();
     	if (fc.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
     		try {
-    			//Save file
-    			networkManager.saveWhiteboard(fc.getSelectedFile());
+    			networkManager.requestBoardDownload();
+    			pendingSave = fc.getSelectedFile();
+    			statusLabel.setText("Fetching the board to save...");
     		} catch (IOException e) {
     			showError("Save failed: " + e.getMessage());
     		}
     	}
     }
     
+    private void finishSave(byte[] board) {
+    	File file = pendingSave;
+    	pendingSave = null;
+    	if (file == null) return;
+    	try {
+    		//Save file
+    		List<ShapeData> shapes = BoardFile.decode(board);
+    		networkManager.saveWhiteboard(file, shapes);
+    		statusLabel.setText("Saved " + shapes.size() + " shapes to " + file.getName());
+    	} catch (IOException e) {
+    		showError("Save failed: " + e.getMessage());
+    	}
+    }
+    
     public void loadWhiteboard() {
     	JFileChooser fc = new JFileChooser();
     	if (fc.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
@@ -321,10 +598,82 @@ class WhiteboardFrame extends JFrame {
     }
     
     private List<ShapeData> loadShapesFromFile(File file) throws IOException, ClassNotFoundException {
-    	try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-    		@SuppressWarnings("unchecked")
-			List<ShapeData> shapes = (List<ShapeData>) ois.readObject();
-    		return shapes;
+    	return BoardFile.read(file);
+    }
+    
+    private void setPlayback(boolean playback) {
+    	this.playback = playback;
+    	canvas.setReadOnly(playback);
+    }
+    
+    //Asks how far back to go; returns epoch millis or -1 if cancelled
+    private long askHistoryTime(String prompt, String initial) {
+    	String input = JOptionPane.showInputDialog(this, prompt, initial);
+    	if (input == null) return -1;
+    	try {
+    		return System.currentTimeMillis() - (long) (Double.parseDouble(input.trim()) * 60_000);
+    	} catch (NumberFormatException e) {
+    		showError("Enter a number of minutes");
+    		return -1;
+    	}
+    }
+    
+    private void playHistory() {
+    	long from = askHistoryTime("Play from how many minutes ago?", "10");
+    	if (from < 0) return;
+    	requestPlayback(from, playbackSpeed);
+    }
+    
+    private void showBoardAt() {
+    	long time = askHistoryTime("Show the board as it was how many minutes ago?", "5");
+    	if (time < 0) return;
+    	requestPlayback(time, 0);
+    }
+    
+    private void changePlaybackSpeed() {
+    	String input = JOptionPane.showInputDialog(this, "Playback speed (times real time):", playbackSpeed);
+    	if (input == null) return;
+    	try {
+    		double speed = Double.parseDouble(input.trim());
+    		if (speed <= 0) throw new NumberFormatException();
+    		playbackSpeed = speed;
+    		if (playback) {
+    			requestPlayback(playbackTime, speed); //Continue from the current frame
+    		}
+    	} catch (NumberFormatException e) {
+    		showError("Enter a positive number");
+    	}
+    }
+    
+    private void requestPlayback(long from, double speed) {
+    	try {
+    		setPlayback(true);
+    		networkManager.requestPlayback(from, System.currentTimeMillis(), speed);
+    	} catch (IOException e) {
+    		setPlayback(false);
+    		showError("Playback failed: " + e.getMessage());
+    	}
+    }
+    
+    private void returnToLive() {
+    	if (!playback) return;
+    	try {
+    		networkManager.stopPlayback();
+    	} catch (IOException e) {
+    		showError("Failed to leave playback: " + e.getMessage());
+    	}
+    }
+    
+    private void restoreHistory() {
+    	long time = askHistoryTime("Restore the board to how many minutes ago?", "5");
+    	if (time < 0) return;
+    	int confirm = JOptionPane.showConfirmDialog(this, "Replace the board for everyone with its state at "
+    			+ new Date(time) + "?", "Restore Board", JOptionPane.YES_NO_OPTION);
+    	if (confirm != JOptionPane.YES_OPTION) return;
+    	try {
+    		networkManager.restoreHistory(time);
+    	} catch (IOException e) {
+    		showError("Restore failed: " + e.getMessage());
     	}
     }
     
@@ -350,78 +699,388 @@ class WhiteboardFrame extends JFrame {
 }
 
 //Drawing canvas panel
+//Right or middle drag pans, the wheel zooms around the cursor. Shapes are in
+//board coordinates; the visible area is reported to the server, which only
+//keeps this client current on the tiles around it.
+//
+//Each layer is rendered into its own cached image, redrawn only when that
+//layer changes or the view moves; a new shape on top is drawn straight onto
+//its layer's image. Painting composites the cached images.
 class DrawingCanvas extends JPanel {
-    private final List<ShapeData> shapes = Collections.synchronizedList(new ArrayList<>());
+    private static final int MAX_UNDO = 100;
+    private static final int CACHE_MIN_SHAPES = 200; //Smaller layers are cheaper to draw than to cache
+    private static final double MIN_ZOOM = 0.1;
+    private static final double MAX_ZOOM = 8;
+    private static final int VIEWPORT_DELAY_MILLIS = 100; //Reported once panning or zooming pauses
+    //Only touched on the EDT
+    private final List<Layer> layers = new ArrayList<>();           //In paint order
+    private final HashMap<Long, Layer> layerOf = new HashMap<>();   //Shape id -> its layer
+    private final ShapeRenderer renderer = new ShapeRenderer();
+    private final Set<String> hiddenLayers = new HashSet<>();       //Kept across board reloads
+    private String currentLayer = Layers.DRAWING;
+    private final Deque<Edit> undoStack = new ArrayDeque<>();
+    private final Deque<Edit> redoStack = new ArrayDeque<>();
+    private Edit currentEdit = null;
     private NetworkManager networkManager;
     private ToolType currentTool = ToolType.PENCIL;
     private Color currentColor = Color.BLACK;
     private Point startPoint = null;
     private Point previewPoint = null;
     private int strokeSize = 4;
+    private boolean deferRepaint = false;
+    private boolean repaintPending = false;
+    private boolean readOnly = false; //Showing history, not the live board
+    private long currentStroke = 0;   //Groups the segments of one freehand gesture
+    private double zoom = 1;
+    private double originX, originY;  //Board point at the top-left corner
+    private Point panFrom = null;
+    private Rectangle interest = null; //Tiles the server keeps current for us, null until it says
+    private final javax.swing.Timer viewportTimer = new javax.swing.Timer(VIEWPORT_DELAY_MILLIS, e -> sendViewport());
+    
+    //One layer's shapes, keyed by id in drawing order, and its rendering
+    private static class Layer {
+    	final String name;
+    	final LinkedHashMap<Long, ShapeData> shapes = new LinkedHashMap<>();
+    	BufferedImage cache;    //Null for small or hidden layers
+    	boolean dirty = true;   //Cache no longer matches the shapes or the view
+    	
+    	Layer(String name) {
+    		this.name = name;
+    	}
+    }
+    
+    //One undoable gesture: the shapes it drew, or the shapes it erased
+    private static class Edit {
+    	final List<ShapeData> shapes = new ArrayList<>();
+    	final boolean added;
+    	
+    	Edit(boolean added) {
+    		this.added = added;
+    	}
+    }
     
     public DrawingCanvas() {
         setBackground(Color.WHITE);
         setBorder(BorderFactory.createLineBorder(Color.GRAY));
         
+        viewportTimer.setRepeats(false);
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) {
+                viewChanged();
+            }
+        });
+        addMouseWheelListener(e -> zoomAt(e.getPoint(), Math.pow(1.1, -e.getPreciseWheelRotation())));
+        
         //Mouse interaction
         addMouseListener(new MouseAdapter() {
             public void mousePressed(MouseEvent e) {
-                startPoint = e.getPoint();
+                if (SwingUtilities.isRightMouseButton(e) || SwingUtilities.isMiddleMouseButton(e)) {
+                    panFrom = e.getPoint();
+                    return;
+                }
+                if (readOnly) return;
+                startPoint = toBoard(e.getPoint());
                 
                 if (currentTool == ToolType.TEXT) {
                     String text = JOptionPane.showInputDialog("Enter text:");
                     if (text != null) {
-                    	ShapeData shape = new ShapeData(currentTool, currentColor, strokeSize, startPoint, startPoint, text);
-                        shapes.add(shape);
-                        sendShapeToNetwork(shape); //Send to other clients
-                        repaint();
+                    	currentEdit = new Edit(true);
+                    	drawShape(new ShapeData(currentTool, currentColor, strokeSize, startPoint, startPoint, text));
+                    	finishEdit();
                     }
-                } else if (currentTool == ToolType.PENCIL || currentTool == ToolType.ERASER) {
-                    ShapeData shape = new ShapeData(currentTool, getEffectiveColor(), strokeSize, e.getPoint(), e.getPoint());
-                	shapes.add(shape);
-                	sendShapeToNetwork(shape); //Send to other clients
-                    repaint();
+                } else if (currentTool == ToolType.PENCIL) {
+                	currentEdit = new Edit(true);
+                	currentStroke = ShapeData.nextId();
+                	drawShape(new ShapeData(currentTool, currentColor, strokeSize, startPoint, startPoint));
+                } else if (currentTool == ToolType.ERASER) {
+                	currentEdit = new Edit(false);
+                	eraseAt(startPoint);
                 }
             }
 
             public void mouseReleased(MouseEvent e) {
+                if (panFrom != null) {
+                    panFrom = null;
+                    return;
+                }
+                if (readOnly) return;
                 if (startPoint != null && currentTool.isShapeTool()) {
-                    Point endPoint = e.getPoint();
-                    ShapeData shape = new ShapeData(currentTool, currentColor, strokeSize, startPoint, endPoint);
-                    shapes.add(shape);
-                    sendShapeToNetwork(shape); //Send to other clients
+                    Point endPoint = toBoard(e.getPoint());
+                    currentEdit = new Edit(true);
+                    drawShape(new ShapeData(currentTool, currentColor, strokeSize, startPoint, endPoint));
                     previewPoint = null;
-                    repaint();
-                } 
+                }
+                finishEdit();
                 startPoint = null;
             }
         });
 
         addMouseMotionListener(new MouseMotionAdapter() {
             public void mouseDragged(MouseEvent e) {
-                if ((currentTool == ToolType.PENCIL || currentTool == ToolType.ERASER) && startPoint != null) {
-                    ShapeData shape = new ShapeData(currentTool, getEffectiveColor(), strokeSize, startPoint, e.getPoint());
-                	shapes.add(shape);
-                	sendShapeToNetwork(shape); //Send to other clients
-                    startPoint = e.getPoint();
-                    repaint();
+                if (panFrom != null) {
+                    originX -= (e.getX() - panFrom.x) / zoom;
+                    originY -= (e.getY() - panFrom.y) / zoom;
+                    panFrom = e.getPoint();
+                    viewChanged();
+                    return;
+                }
+                Point p = toBoard(e.getPoint());
+                if (currentTool == ToolType.PENCIL && startPoint != null) {
+                	drawShape(new ShapeData(currentTool, currentColor, strokeSize, startPoint, p));
+                    startPoint = p;
+                } else if (currentTool == ToolType.ERASER && startPoint != null) {
+                	eraseAt(p);
                 } else if (currentTool.isShapeTool() && startPoint != null) {
-                    previewPoint = e.getPoint();
+                    previewPoint = p;
                     repaint();
                 }
             }
         });
     }
     
+    private Point toBoard(Point p) {
+        return new Point((int) Math.floor(originX + p.x / zoom), (int) Math.floor(originY + p.y / zoom));
+    }
+    
+    //Keeps the board point under the cursor in place
+    private void zoomAt(Point p, double factor) {
+        double next = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom * factor));
+        originX += p.x / zoom - p.x / next;
+        originY += p.y / zoom - p.y / next;
+        zoom = next;
+        viewChanged();
+    }
+    
+    private void viewChanged() {
+        invalidateLayers();
+        repaint();
+        viewportTimer.restart();
+    }
+    
+    //Visible area in board coordinates
+    public Rectangle getViewport() {
+        return new Rectangle((int) Math.floor(originX), (int) Math.floor(originY),
+                (int) Math.ceil(getWidth() / zoom) + 1, (int) Math.ceil(getHeight() / zoom) + 1);
+    }
+    
+    private void sendViewport() {
+        if (getWidth() > 0 && getHeight() > 0) {
+            sendToNetwork(new ServerMessage(ServerMessage.MessageType.VIEWPORT, getViewport()));
+        }
+    }
+    
+    //Tiles that came into view replace what is held for them; shapes outside
+    //the server's interest area are dropped since they no longer get updates
+    public void loadTiles(ServerMessage.Tiles tiles) {
+        interest = tiles.interest;
+        for (Layer layer : layers) {
+            Iterator<ShapeData> iterator = layer.shapes.values().iterator();
+            while (iterator.hasNext()) {
+                ShapeData shape = iterator.next();
+                Rectangle range = SpatialGrid.rangeOf(shape);
+                if (!range.intersects(tiles.interest) || intersectsAny(tiles.tiles, range)) {
+                    iterator.remove();
+                    layerOf.remove(shape.id);
+                    layer.dirty = true;
+                }
+            }
+        }
+        for (ShapeData shape : tiles.shapes) {
+            put(shape);
+        }
+        requestRepaint();
+    }
+    
+    private static boolean intersectsAny(List<Rectangle> areas, Rectangle range) {
+        for (Rectangle area : areas) {
+            if (area.intersects(range)) return true;
+        }
+        return false;
+    }
+    
     public void loadShapes(List<ShapeData> shapes) {
-		synchronized(this.shapes) {
-			this.shapes.clear();
-			if(shapes != null) {
-				this.shapes.addAll(shapes);
+		removeAllShapes();
+		if(shapes != null) {
+			for (ShapeData shape : shapes) {
+				put(shape);
 			}
-			repaint();
 		}
+		clearHistory();
+		repaint();
 	}
+    
+    //Adds or replaces a shape in its layer, drawing a new top shape onto a clean cache
+    private void put(ShapeData shape) {
+    	Layer layer = layer(Layers.of(shape));
+    	Layer previous = layerOf.put(shape.id, layer);
+    	if (previous != null && previous != layer) {
+    		previous.shapes.remove(shape.id);
+    		previous.dirty = true;
+    	}
+    	if (layer.shapes.put(shape.id, shape) != null) {
+    		layer.dirty = true; //Replaced in place, under whatever came later
+    	} else if (layer.cache != null && !layer.dirty) {
+    		Graphics2D g = layer.cache.createGraphics();
+    		toBoardSpace(g);
+    		renderer.draw(g, shape);
+    		g.dispose();
+    	}
+    }
+    
+    private ShapeData remove(long id) {
+    	Layer layer = layerOf.remove(id);
+    	if (layer == null) return null;
+    	layer.dirty = true;
+    	return layer.shapes.remove(id);
+    }
+    
+    //The named layer, created in rank order if new
+    private Layer layer(String name) {
+    	for (Layer layer : layers) {
+    		if (layer.name.equals(name)) return layer;
+    	}
+    	Layer layer = new Layer(name);
+    	int at = 0;
+    	while (at < layers.size() && Layers.rank(layers.get(at).name) <= Layers.rank(name)) at++;
+    	layers.add(at, layer);
+    	return layer;
+    }
+    
+    private void removeAllShapes() {
+    	layers.clear();
+    	layerOf.clear();
+    }
+    
+    private void invalidateLayers() {
+    	for (Layer layer : layers) {
+    		layer.dirty = true;
+    	}
+    }
+    
+    //Empties one layer; the others keep their cached images
+    public void clearLayer(String name) {
+    	for (Layer layer : layers) {
+    		if (layer.name.equals(name)) {
+    			for (long id : layer.shapes.keySet()) {
+    				layerOf.remove(id);
+    			}
+    			layer.shapes.clear();
+    			layer.dirty = true;
+    		}
+    	}
+    	requestRepaint();
+    }
+    
+    public void setLayerVisible(String name, boolean visible) {
+    	if (visible ? hiddenLayers.remove(name) : hiddenLayers.add(name)) {
+    		repaint();
+    	}
+    }
+    
+    public boolean isLayerVisible(String name) {
+    	return !hiddenLayers.contains(name);
+    }
+    
+    //Layers holding shapes, in paint order
+    public List<String> getLayerNames() {
+    	List<String> names = new ArrayList<>();
+    	for (Layer layer : layers) {
+    		if (!layer.shapes.isEmpty()) names.add(layer.name);
+    	}
+    	return names;
+    }
+    
+    //Layer new shapes go on
+    public void setLayer(String layer) {
+    	this.currentLayer = layer;
+    }
+    
+    public String getLayer() {
+    	return currentLayer;
+    }
+    
+    //Adds a locally drawn shape and shares it
+    private void drawShape(ShapeData shape) {
+    	if (shape.type == ToolType.PENCIL) shape.strokeId = currentStroke; //Lets the server merge the stroke
+    	if (!Layers.DRAWING.equals(currentLayer)) shape.layer = currentLayer;
+    	put(shape);
+    	if (currentEdit != null) currentEdit.shapes.add(shape);
+    	sendShapeToNetwork(shape); //Send to other clients
+    	repaint();
+    }
+    
+    //Object eraser: removes every shape whose outline passes under the cursor
+    private void eraseAt(Point p) {
+    	List<ShapeData> hit = new ArrayList<>();
+    	for (Layer layer : layers) {
+    		if (hiddenLayers.contains(layer.name)) continue; //Only what can be seen is erased
+    		for (ShapeData shape : layer.shapes.values()) {
+    			if (shape.hits(p, strokeSize)) {
+    				hit.add(shape);
+    			}
+    		}
+    	}
+    	if (hit.isEmpty()) return;
+    	long[] ids = new long[hit.size()];
+    	for (int i = 0; i < ids.length; i++) {
+    		ids[i] = hit.get(i).id;
+    		remove(ids[i]);
+    	}
+    	if (currentEdit != null) currentEdit.shapes.addAll(hit);
+    	sendToNetwork(new ServerMessage(ServerMessage.MessageType.DELETE_SHAPES, ids));
+    	repaint();
+    }
+    
+    private void finishEdit() {
+    	if (currentEdit != null && !currentEdit.shapes.isEmpty()) {
+    		pushEdit(undoStack, currentEdit);
+    		redoStack.clear();
+    	}
+    	currentEdit = null;
+    }
+    
+    private static void pushEdit(Deque<Edit> stack, Edit edit) {
+    	stack.push(edit);
+    	if (stack.size() > MAX_UNDO) {
+    		stack.removeLast();
+    	}
+    }
+    
+    public void undo() {
+    	if (readOnly) return;
+    	Edit edit = undoStack.poll();
+    	if (edit != null) {
+    		apply(edit, !edit.added);
+    		pushEdit(redoStack, edit);
+    	}
+    }
+    
+    public void redo() {
+    	if (readOnly) return;
+    	Edit edit = redoStack.poll();
+    	if (edit != null) {
+    		apply(edit, edit.added);
+    		pushEdit(undoStack, edit);
+    	}
+    }
+    
+    //Re-adds (restore) or removes (delete) an edit's shapes here and on the server
+    private void apply(Edit edit, boolean restore) {
+    	if (restore) {
+    		restoreShapes(edit.shapes);
+    		sendToNetwork(new ServerMessage(ServerMessage.MessageType.RESTORE_SHAPES, new ArrayList<>(edit.shapes)));
+    	} else {
+    		long[] ids = edit.shapes.stream().mapToLong(shape -> shape.id).toArray();
+    		removeShapes(ids);
+    		sendToNetwork(new ServerMessage(ServerMessage.MessageType.DELETE_SHAPES, ids));
+    	}
+    }
+    
+    private void clearHistory() {
+    	undoStack.clear();
+    	redoStack.clear();
+    	currentEdit = null;
+    }
 
 	private void sendShapeToNetwork(ShapeData shape) {
     	if (networkManager != null) {
@@ -432,20 +1091,78 @@ class DrawingCanvas extends JPanel {
     		}
     	}
     }
-    
-    private Color getEffectiveColor() {
-    	return currentTool == ToolType.ERASER ? Color.WHITE : currentColor;
-    }
+	
+	private void sendToNetwork(ServerMessage message) {
+		if (networkManager != null) {
+			try {
+				networkManager.sendMessage(message);
+			} catch (IOException ex) {
+				JOptionPane.showMessageDialog(this, "Network error: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+			}
+		}
+	}
     
     public void setNetworkManager(NetworkManager networkManager) {
     	this.networkManager = networkManager;
     }
 
     public void addShape(ShapeData shape) {
-    	synchronized(shapes) {
-    		shapes.add(shape);
+    	put(shape);
+    	requestRepaint();
+    }
+    
+    public void removeShapes(long[] ids) {
+    	for (long id : ids) {
+    		remove(id);
     	}
-    	repaint();
+    	requestRepaint();
+    }
+    
+    public void restoreShapes(List<ShapeData> restored) {
+    	for (ShapeData shape : restored) {
+    		if (!layerOf.containsKey(shape.id)) put(shape);
+    	}
+    	requestRepaint();
+    }
+    
+    //Server merged a stroke: the merged shape takes its first segment's place.
+    //It is kept if any segment was held or it reaches the interest area, since
+    //its first segment may lie outside that area while later ones are in view.
+    public void mergeShapes(ServerMessage.MergedShapes merge) {
+    	boolean held = layerOf.containsKey(merge.merged.id);
+    	for (long id : merge.removed) {
+    		held |= layerOf.containsKey(id);
+    	}
+    	if (held || interest == null || SpatialGrid.rangeOf(merge.merged).intersects(interest)) {
+    		put(merge.merged); //Keeps the drawing order when its first segment was held
+    	}
+    	for (long id : merge.removed) {
+    		remove(id);
+    	}
+    	requestRepaint();
+    }
+    
+    //While deferred (EDT only), repaints are collapsed into one when the batch ends
+    public void setDeferRepaint(boolean defer) {
+    	deferRepaint = defer;
+    	if (!defer && repaintPending) {
+    		repaintPending = false;
+    		repaint();
+    	}
+    }
+    
+    private void requestRepaint() {
+    	if (deferRepaint) {
+    		repaintPending = true;
+    	} else {
+    		repaint();
+    	}
+    }
+    
+    public void setReadOnly(boolean readOnly) {
+    	this.readOnly = readOnly;
+    	startPoint = null;
+    	previewPoint = null;
     }
     
     public void setTool(ToolType tool) {
@@ -461,27 +1178,76 @@ class DrawingCanvas extends JPanel {
     }
 
     public void clear() {
-    	shapes.clear();
+    	removeAllShapes();
+    	clearHistory();
         repaint();
     }
     
-    public List<ShapeData> getShapes(){
-    	return shapes;
+    private void toBoardSpace(Graphics2D g) {
+    	g.scale(zoom, zoom);
+    	g.translate(-originX, -originY);
+    }
+    
+    //Redraws a layer's cache if needed; returns whether it did
+    private boolean render(Layer layer) {
+    	int width = Math.max(1, getWidth());
+    	int height = Math.max(1, getHeight());
+    	if (layer.cache == null || layer.cache.getWidth() != width || layer.cache.getHeight() != height) {
+    		layer.cache = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    		layer.dirty = true;
+    	}
+    	if (!layer.dirty) return false;
+    	Graphics2D g = layer.cache.createGraphics();
+    	g.setComposite(AlphaComposite.Clear);
+    	g.fillRect(0, 0, width, height);
+    	g.setComposite(AlphaComposite.SrcOver);
+    	toBoardSpace(g);
+    	renderer.begin(g);
+    	for (ShapeData shape : layer.shapes.values()) {
+    		renderer.draw(shape);
+    	}
+    	g.dispose();
+    	layer.dirty = false;
+    	return true;
     }
 
     protected void paintComponent(Graphics g) {
+        WhiteboardEvents.CanvasPaint event = new WhiteboardEvents.CanvasPaint();
+        event.begin();
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
-        for (ShapeData s : shapes) {
-            s.draw(g2d);
+        AffineTransform screen = g2d.getTransform();
+        int rendered = 0;
+        for (Layer layer : layers) {
+            if (hiddenLayers.contains(layer.name) || layer.shapes.size() < CACHE_MIN_SHAPES) {
+                layer.cache = null; //Frees hidden and small layers' images
+                layer.dirty = true;
+                if (hiddenLayers.contains(layer.name)) continue;
+                toBoardSpace(g2d);
+                renderer.begin(g2d);
+                for (ShapeData s : layer.shapes.values()) {
+                    renderer.draw(s);
+                }
+                g2d.setTransform(screen);
+                continue;
+            }
+            if (render(layer)) rendered++;
+            g2d.drawImage(layer.cache, 0, 0, null);
         }
+        toBoardSpace(g2d);
 
         //Preview shape for shape tools
         if (startPoint != null && previewPoint != null && currentTool.isShapeTool()) {
-            g2d.setColor(currentColor);
-            g2d.setStroke(new BasicStroke(strokeSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND, 1.0f,
-                    new float[]{5.0f}, 0.0f));
-            new ShapeData(currentTool, currentColor, strokeSize, startPoint, previewPoint).draw(g2d);
+            renderer.begin(g2d);
+            renderer.drawPreview(currentTool, currentColor, strokeSize, startPoint, previewPoint);
+        }
+        g2d.setTransform(screen);
+        if (event.shouldCommit()) {
+            event.shapes = layerOf.size();
+            event.layersRendered = rendered;
+            event.width = getWidth();
+            event.height = getHeight();
+            event.commit();
         }
     }
 }
@@ -510,13 +1276,25 @@ enum ToolType {
 //Shapes drawn on canvas
 class ShapeData implements Serializable{
     private static final long serialVersionUID = 1L;
+    //Random per-process prefix so ids from different clients don't collide
+    private static final long ID_BASE = (long) new SecureRandom().nextInt() << 32;
+    private static final AtomicInteger ID_COUNTER = new AtomicInteger();
     
+    long id; //Stable board-wide id, 0 for shapes from old files until stored
 	ToolType type;
     Color color;
     int stroke;
     Point start;
     Point end;
     String text;
+    long strokeId;   //Freehand gesture this segment belongs to, 0 if none
+    String layer;    //Named layer, null for Layers.DRAWING
+    int[] xs, ys;    //Points of a stroke merged by the server, null otherwise
+    
+    static long nextId() {
+    	long id = ID_BASE | (ID_COUNTER.incrementAndGet() & 0xFFFFFFFFL);
+    	return id != 0 ? id : nextId();
+    }
 
     public ShapeData(ToolType type, Color color, int stroke, Point start, Point end) {
         this(type, color, stroke, start, end, null);
@@ -524,33 +1302,60 @@ class ShapeData implements Serializable{
 
     public ShapeData(ToolType type, Color color, int stroke, Point start, Point end, String text) {
         this.type = type;
-        this.color = color;
+        this.color = ShapeRenderer.intern(color);
         this.stroke = stroke;
         this.start = start;
         this.end = end;
         this.text = text;
+        this.id = nextId();
     }
-
-    public void draw(Graphics2D g2d) {
-        g2d.setColor(color);
-        g2d.setStroke(new BasicStroke(stroke));
+    
+    //Geometry as an AWT shape (text uses an approximate box)
+    public Shape toShape() {
         int x = Math.min(start.x, end.x);
         int y = Math.min(start.y, end.y);
         int w = Math.abs(start.x - end.x);
         int h = Math.abs(start.y - end.y);
-        
-        switch (type) {
-            case LINE -> g2d.drawLine(start.x, start.y, end.x, end.y);
-            case RECTANGLE -> g2d.drawRect(x, y, w, h);
-            case OVAL -> g2d.drawOval(x, y, w, h);
-            case TRIANGLE -> {
-                int[] xs = {start.x, end.x, start.x - (end.x - start.x)};
-                int[] ys = {start.y, end.y, end.y};
-                g2d.drawPolygon(xs, ys, 3);
-            }
-            case PENCIL, ERASER -> g2d.drawLine(start.x, start.y, end.x, end.y);
-            case TEXT -> g2d.drawString(text, start.x, start.y);
+        return switch (type) {
+            case RECTANGLE -> new Rectangle(x, y, w, h);
+            case OVAL -> new Ellipse2D.Float(x, y, w, h);
+            case TRIANGLE -> new Polygon(new int[]{start.x, end.x, start.x - (end.x - start.x)},
+                    new int[]{start.y, end.y, end.y}, 3);
+            case TEXT -> new Rectangle(start.x, start.y - 12, 7 * (text == null ? 0 : text.length()), 14);
+            default -> xs != null ? polyline() : new Line2D.Float(start, end);
+        };
+    }
+    
+    private Path2D polyline() {
+        Path2D.Float path = new Path2D.Float(Path2D.WIND_NON_ZERO, xs.length);
+        path.moveTo(xs[0], ys[0]);
+        for (int i = 1; i < xs.length; i++) {
+            path.lineTo(xs[i], ys[i]);
+        }
+        return path;
+    }
+    
+    public Rectangle getBounds() {
+        Rectangle bounds = toShape().getBounds();
+        bounds.grow(stroke / 2 + 1, stroke / 2 + 1);
+        return bounds;
+    }
+    
+    //True if the drawn outline passes within radius of p
+    public boolean hits(Point p, int radius) {
+        if (!getBounds().intersects(p.x - radius, p.y - radius, 2 * radius, 2 * radius)) {
+            return false;
         }
+        if (type == ToolType.TEXT) {
+            return true;
+        }
+        return ShapeRenderer.stroke(stroke + 2 * radius).createStrokedShape(toShape()).contains(p);
     }
     
+    //Shapes off the wire or from files share one Color per colour
+    private Object readResolve() {
+        color = ShapeRenderer.intern(color);
+        return this;
+    }
+
 }
@@ -0,0 +1,448 @@
+package main;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+//Luis Mauboy - 1684115
+//Benchmarks for the hot paths of the whiteboard. Run with:
+//  javac -d bin src/main/*.java
+//  java -cp bin main.WhiteboardBenchmarks [-wi 3] [-i 5] [-r 1000] [-f filter] [-o bench-results.json]
+//                                          [-clients 1,10,100] [-boards 10000,100000,1000000]
+//                                          [-producers 1,4,16]
+public class WhiteboardBenchmarks {
+    private static final Random random = new Random(42);
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        int warmup = 3;
+        int iterations = 5;
+        long iterationMillis = 1000;
+        String filter = null;
+        String output = "bench-results.json";
+        int[] clientCounts = {1, 10, 100};
+        int[] boardSizes = {10_000, 100_000, 1_000_000};
+        int[] producerCounts = {1, 4, 16};
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-wi" -> warmup = Integer.parseInt(args[i + 1]);
+                case "-i" -> iterations = Integer.parseInt(args[i + 1]);
+                case "-r" -> iterationMillis = Long.parseLong(args[i + 1]);
+                case "-f" -> filter = args[i + 1];
+                case "-o" -> output = args[i + 1];
+                case "-clients" -> clientCounts = parseList(args[i + 1]);
+                case "-boards" -> boardSizes = parseList(args[i + 1]);
+                case "-producers" -> producerCounts = parseList(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, iterationMillis, filter);
+        serialization(runner);
+        broadcast(runner, clientCounts);
+        initialState(runner, boardSizes);
+        boardWriter(runner, producerCounts);
+        paint(runner, boardSizes);
+        render(runner, boardSizes);
+        export(runner);
+        metrics(runner);
+
+        runner.writeJson(new File(output));
+        System.out.println("Results written to " + output);
+        System.exit(0);
+    }
+
+    //ServerMessage/ShapeData encode and decode
+    private static void serialization(BenchmarkRunner runner) throws Exception {
+        Map<String, ServerMessage> messages = new LinkedHashMap<>();
+        messages.put("shape", new ServerMessage(ServerMessage.MessageType.SHAPE, randomShape()));
+        messages.put("chat", new ServerMessage(ServerMessage.MessageType.CHAT_MESSAGE, "user: hello everyone on the board"));
+        messages.put("fileData1k", new ServerMessage(ServerMessage.MessageType.FILE_DATA, randomShapes(1000)));
+
+        for (Map.Entry<String, ServerMessage> e : messages.entrySet()) {
+            ServerMessage message = e.getValue();
+            byte[] encoded = encode(message);
+            runner.run("serialization.encode", Map.of("message", e.getKey()), () -> encode(message));
+            runner.run("serialization.decode", Map.of("message", e.getKey()), () -> decode(encoded));
+        }
+    }
+
+    //WhiteboardServer.broadcast fan-out to N loopback clients
+    private static void broadcast(BenchmarkRunner runner, int[] clientCounts) throws Exception {
+        if (!runner.isSelected("server.broadcast")) return;
+        for (int n : clientCounts) {
+            WhiteboardServer server = startServer();
+            List<BenchClient> clients = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                clients.add(BenchClient.join(server.getPort(), "bench-" + i));
+            }
+            runner.run("server.broadcast", Map.of("clients", String.valueOf(n)), () -> {
+                //A fresh message per call, as the server would have just decoded it
+                ServerMessage message = new ServerMessage(ServerMessage.MessageType.SHAPE, randomShape());
+                server.broadcast(WhiteboardServer.DEFAULT_BOARD, message);
+                return message;
+            });
+            server.stop();
+            for (BenchClient client : clients) client.close();
+        }
+    }
+
+    //Time for a new client to receive a full board via sendInitialState
+    private static void initialState(BenchmarkRunner runner, int[] boardSizes) throws Exception {
+        if (!runner.isSelected("server.sendInitialState")) return;
+        for (int size : boardSizes) {
+            WhiteboardServer server = startServer();
+            BenchClient manager = BenchClient.join(server.getPort(), "bench-manager");
+            manager.seed(randomShapes(size));
+            AtomicLong counter = new AtomicLong();
+            runner.run("server.sendInitialState", Map.of("shapes", String.valueOf(size)), () -> {
+                try (Socket socket = new Socket("localhost", server.getPort())) {
+                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out.writeObject(new ServerMessage(ServerMessage.MessageType.USER_JOIN, "joiner-" + counter.incrementAndGet()));
+                    out.flush();
+                    int shapes = 0;
+                    ServerMessage message;
+                    while ((message = (ServerMessage) in.readObject()).getType() != ServerMessage.MessageType.USER_LIST) {
+                        if (message.getType() == ServerMessage.MessageType.BOARD_SNAPSHOT) {
+                            shapes = BoardFile.decode(message.getBoardSnapshot()).size();
+                        }
+                    }
+                    return shapes;
+                }
+            });
+            server.stop();
+            manager.close();
+        }
+    }
+
+    //Board apply + fan-out throughput: P client threads taking the old locks
+    //(synchronized store, synchronized broadcast, per-client stream monitor)
+    //versus the same work funneled through an MPSC ring buffer to one writer
+    private static void boardWriter(BenchmarkRunner runner, int[] producerCounts) throws Exception {
+        final int batch = 10_000; //Messages per producer per call
+        final int sinks = 10;
+        if (!runner.isSelected("board.locking") && !runner.isSelected("board.actor")) return;
+        List<ShapeData> shapes = randomShapes(batch);
+        for (int producers : producerCounts) {
+            ExecutorService pool = Executors.newFixedThreadPool(producers);
+            Map<String, String> params = Map.of("producers", String.valueOf(producers),
+                    "messages", String.valueOf(producers * batch));
+
+            if (runner.isSelected("board.locking")) {
+                ShapeStore store = new ShapeStore();
+                Object broadcastLock = new Object();
+                DataOutputStream[] outs = newSinks(sinks);
+                runner.run("board.locking", params, () -> {
+                    store.clear();
+                    runProducers(pool, producers, () -> {
+                        for (ShapeData shape : shapes) {
+                            ShapeData copy = copyOf(shape);
+                            if (store.add(copy)) {
+                                synchronized (broadcastLock) {
+                                    for (DataOutputStream out : outs) {
+                                        synchronized (out) {
+                                            out.writeLong(copy.id);
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    });
+                    return store;
+                });
+            }
+
+            if (runner.isSelected("board.actor")) {
+                ShapeStore store = new ShapeStore();
+                DataOutputStream[] outs = newSinks(sinks);
+                MpscRingBuffer<ShapeData> queue = new MpscRingBuffer<>(1 << 16);
+                AtomicLong applied = new AtomicLong();
+                Thread writer = new Thread(() -> {
+                    try {
+                        while (true) {
+                            ShapeData shape = queue.take();
+                            if (store.add(shape)) {
+                                for (DataOutputStream out : outs) {
+                                    out.writeLong(shape.id);
+                                }
+                            }
+                            applied.lazySet(applied.get() + 1);
+                        }
+                    } catch (InterruptedException | IOException e) {
+                        //Benchmark finished
+                    }
+                }, "bench-board-writer");
+                writer.setDaemon(true);
+                writer.start();
+                runner.run("board.actor", params, () -> {
+                    store.clear();
+                    long target = applied.get() + (long) producers * batch;
+                    runProducers(pool, producers, () -> {
+                        for (ShapeData shape : shapes) {
+                            queue.put(copyOf(shape));
+                        }
+                    });
+                    while (applied.get() < target) {
+                        Thread.onSpinWait();
+                    }
+                    return store;
+                });
+                writer.interrupt();
+            }
+            pool.shutdown();
+        }
+    }
+
+    private interface ProducerTask {
+        void run() throws Exception;
+    }
+
+    private static void runProducers(ExecutorService pool, int producers, ProducerTask task) throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            futures.add(pool.submit(() -> {
+                task.run();
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    private static DataOutputStream[] newSinks(int count) {
+        DataOutputStream[] outs = new DataOutputStream[count];
+        for (int i = 0; i < count; i++) {
+            outs[i] = new DataOutputStream(new BufferedOutputStream(OutputStream.nullOutputStream()));
+        }
+        return outs;
+    }
+
+    //Fresh id per message, as each decoded message is a new shape
+    private static ShapeData copyOf(ShapeData shape) {
+        return new ShapeData(shape.type, shape.color, shape.stroke, shape.start, shape.end, shape.text);
+    }
+
+    //DrawingCanvas.paintComponent into an off-screen image
+    private static void paint(BenchmarkRunner runner, int[] boardSizes) throws Exception {
+        if (!runner.isSelected("canvas.paintComponent")) return;
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
+        for (int size : boardSizes) {
+            DrawingCanvas canvas = new DrawingCanvas();
+            canvas.setSize(image.getWidth(), image.getHeight());
+            canvas.loadShapes(randomShapes(size));
+            runner.run("canvas.paintComponent", Map.of("shapes", String.valueOf(size)), () -> {
+                Graphics2D g = image.createGraphics();
+                try {
+                    canvas.paintComponent(g);
+                } finally {
+                    g.dispose();
+                }
+                return image;
+            });
+        }
+    }
+
+    //A full redraw through ShapeRenderer, as after a pan or zoom, of a board of
+    //freehand strokes in a small palette; its B/op should stay near zero
+    private static void render(BenchmarkRunner runner, int[] boardSizes) throws Exception {
+        if (!runner.isSelected("canvas.render")) return;
+        BufferedImage image = new BufferedImage(800, 600, BufferedImage.TYPE_INT_ARGB);
+        ShapeRenderer renderer = new ShapeRenderer();
+        for (int size : boardSizes) {
+            List<ShapeData> shapes = randomStrokes(size);
+            runner.run("canvas.render", Map.of("segments", String.valueOf(size)), () -> {
+                Graphics2D g = image.createGraphics();
+                try {
+                    renderer.begin(g);
+                    for (ShapeData shape : shapes) {
+                        renderer.draw(shape);
+                    }
+                } finally {
+                    g.dispose();
+                }
+                return image;
+            });
+        }
+    }
+
+    //Tiled PNG export of a 100k-shape board at 2x, by fork-join parallelism
+    private static void export(BenchmarkRunner runner) throws Exception {
+        if (!runner.isSelected("export.png")) return;
+        List<ShapeData> shapes = randomShapes(100_000);
+        Rectangle region = BoardExporter.boundsOf(shapes);
+        OutputStream discard = OutputStream.nullOutputStream();
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads : new TreeSet<>(List.of(1, Math.max(1, cores / 2), cores))) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            BoardExporter exporter = new BoardExporter(pool);
+            runner.run("export.png", Map.of("threads", String.valueOf(threads)), () -> {
+                exporter.export(shapes, region, 2, discard);
+                return exporter;
+            });
+            pool.shutdown();
+        }
+    }
+
+    //Hot-path cost of metrics recording, to keep instrumentation overhead negligible
+    private static void metrics(BenchmarkRunner runner) throws Exception {
+        ServerMetrics metrics = new ServerMetrics();
+        long[] nanos = {800, 1_500, 12_000, 250_000};
+        int[] i = {0};
+        runner.run("metrics.recordMessage", Map.of(), () -> {
+            metrics.recordMessage(ServerMessage.MessageType.SHAPE, nanos[i[0]++ & 3]);
+            return metrics;
+        });
+        runner.run("metrics.recordFanout", Map.of(), () -> {
+            metrics.recordFanout(10, nanos[i[0]++ & 3]);
+            return metrics;
+        });
+        metrics.close();
+    }
+
+    static WhiteboardServer startServer() throws InterruptedException {
+        WhiteboardServer server = new WhiteboardServer();
+        Thread thread = new Thread(() -> {
+            try {
+                server.start(0);
+            } catch (IOException e) {
+                System.err.println("Benchmark server error: " + e.getMessage());
+            }
+        }, "bench-server");
+        thread.setDaemon(true);
+        thread.start();
+        while (server.getPort() <= 0) {
+            Thread.sleep(10);
+        }
+        return server;
+    }
+
+    static byte[] encode(ServerMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        return bytes.toByteArray();
+    }
+
+    static ServerMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (ServerMessage) in.readObject();
+        }
+    }
+
+    static ShapeData randomShape() {
+        ToolType[] tools = ToolType.values();
+        ToolType tool = tools[random.nextInt(tools.length)];
+        Point start = new Point(random.nextInt(2000), random.nextInt(2000));
+        Point end = new Point(start.x + random.nextInt(41) - 20, start.y + random.nextInt(41) - 20);
+        Color color = new Color(random.nextInt(0xFFFFFF));
+        return tool == ToolType.TEXT
+                ? new ShapeData(tool, color, 4, start, start, "note")
+                : new ShapeData(tool, color, 4 + 2 * random.nextInt(4), start, end);
+    }
+
+    static List<ShapeData> randomShapes(int count) {
+        List<ShapeData> shapes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            shapes.add(randomShape());
+        }
+        return shapes;
+    }
+
+    //Strokes of 40 segments each, merged as StrokeCompactor leaves them, in eight colours
+    static List<ShapeData> randomStrokes(int segments) {
+        Color[] palette = {Color.BLACK, Color.RED, Color.BLUE, Color.GREEN, Color.ORANGE, Color.MAGENTA, Color.GRAY, Color.CYAN};
+        List<ShapeData> shapes = new ArrayList<>(segments / 40 + 1);
+        for (int done = 0; done < segments; done += 40) {
+            int points = Math.min(40, segments - done) + 1;
+            Point start = new Point(random.nextInt(2000), random.nextInt(2000));
+            ShapeData stroke = new ShapeData(ToolType.PENCIL, palette[random.nextInt(palette.length)],
+                    2 + 2 * random.nextInt(3), start, start);
+            stroke.xs = new int[points];
+            stroke.ys = new int[points];
+            for (int i = 0; i < points; i++) {
+                start = new Point(start.x + random.nextInt(11) - 5, start.y + random.nextInt(11) - 5);
+                stroke.xs[i] = start.x;
+                stroke.ys[i] = start.y;
+            }
+            stroke.end = start;
+            shapes.add(stroke);
+        }
+        return shapes;
+    }
+
+    private static int[] parseList(String value) {
+        return Arrays.stream(value.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    //Minimal protocol client that joins and drains everything the server sends
+    static class BenchClient implements Closeable {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+        private final BlockingQueue<ServerMessage.MessageType> received = new LinkedBlockingQueue<>();
+
+        private BenchClient(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new ObjectOutputStream(socket.getOutputStream());
+            this.in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        static BenchClient join(int port, String username) throws Exception {
+            BenchClient client = new BenchClient(new Socket("localhost", port));
+            client.send(new ServerMessage(ServerMessage.MessageType.USER_JOIN, username));
+            Thread reader = new Thread(client::drain, "bench-client-" + username);
+            reader.setDaemon(true);
+            reader.start();
+            client.await(ServerMessage.MessageType.USER_LIST);
+            return client;
+        }
+
+        //Replaces the board with the given shapes and waits for the echo
+        void seed(List<ShapeData> shapes) throws Exception {
+            send(new ServerMessage(ServerMessage.MessageType.FILE_DATA, new ArrayList<>(shapes)));
+            await(ServerMessage.MessageType.FILE_DATA);
+        }
+
+        void send(ServerMessage message) throws IOException {
+            synchronized (out) {
+                out.writeObject(message);
+                out.flush();
+                out.reset();
+            }
+        }
+
+        private void await(ServerMessage.MessageType type) throws InterruptedException, TimeoutException {
+            ServerMessage.MessageType next;
+            do {
+                next = received.poll(5, TimeUnit.MINUTES);
+                if (next == null) throw new TimeoutException("No " + type + " received");
+            } while (next != type);
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    ServerMessage message = (ServerMessage) in.readObject();
+                    if (message.getType() != ServerMessage.MessageType.SHAPE) {
+                        received.add(message.getType());
+                    }
+                }
+            } catch (Exception e) {
+                //Socket closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package main;
+
+import jdk.jfr.*;
+//Luis Mauboy - 1684115
+//Custom Java Flight Recorder events. All are disabled by default; when a
+//disabled event is created and checked with shouldCommit() the JIT removes it,
+//so the instrumented paths cost nothing unless a recording turns them on:
+//  java -XX:StartFlightRecording:settings=default,settings=whiteboard.jfc,filename=board.jfr ...
+final class WhiteboardEvents {
+    private WhiteboardEvents() {
+    }
+
+    @Name("main.MessageProcessed")
+    @Label("Message Processed")
+    @Category({"Whiteboard", "Server"})
+    @Description("ClientHandler.processClientMessage for one inbound message")
+    @Enabled(false)
+    @StackTrace(false)
+    static class MessageProcessed extends Event {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Sender")
+        String sender;
+
+        @Label("Payload Size")
+        @DataAmount
+        long payloadBytes;
+    }
+
+    @Name("main.Broadcast")
+    @Label("Broadcast")
+    @Category({"Whiteboard", "Server"})
+    @Description("Fan-out of one message to connected clients' outbound queues")
+    @Enabled(false)
+    @StackTrace(false)
+    static class Broadcast extends Event {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Recipients")
+        int recipients;
+
+        @Label("Sender Excluded")
+        boolean senderExcluded;
+    }
+
+    @Name("main.InitialState")
+    @Label("Initial State")
+    @Category({"Whiteboard", "Server"})
+    @Description("Board snapshot sent to a joining client")
+    @Enabled(false)
+    @StackTrace(false)
+    static class InitialState extends Event {
+        @Label("Username")
+        String username;
+
+        @Label("Shapes")
+        int shapes;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long payloadBytes;
+    }
+
+    @Name("main.BoardFile")
+    @Label("Board Save/Load")
+    @Category({"Whiteboard", "Server"})
+    @Description("Server-side whiteboard save or load")
+    @Enabled(false)
+    @StackTrace(false)
+    static class BoardFile extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("File")
+        String file;
+
+        @Label("Shapes")
+        int shapes;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("main.ClientDispatch")
+    @Label("Client Message Dispatch")
+    @Category({"Whiteboard", "Client"})
+    @Description("Handling of a received message on the event dispatch thread")
+    @Enabled(false)
+    @StackTrace(false)
+    static class ClientDispatch extends Event {
+        @Label("Message Type")
+        String messageType;
+
+        @Label("Queue Delay")
+        @Description("Time between receipt on the socket and dispatch on the EDT")
+        @Timespan(Timespan.NANOSECONDS)
+        long queueDelay;
+    }
+
+    @Name("main.CanvasPaint")
+    @Label("Canvas Paint")
+    @Category({"Whiteboard", "Client"})
+    @Description("DrawingCanvas.paintComponent")
+    @Enabled(false)
+    @StackTrace(false)
+    static class CanvasPaint extends Event {
+        @Label("Shapes")
+        int shapes;
+
+        @Label("Layers Rendered")
+        @Description("Layer caches redrawn; the rest were composited as they were")
+        int layersRendered;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+    }
+}
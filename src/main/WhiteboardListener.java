@@ -0,0 +1,10 @@
+package main;
+//Luis Mauboy - 1684115
+//Receives server traffic from NetworkManager. Callbacks run on the network
+//receiver thread, so GUI implementations must hand work to the EDT themselves.
+public interface WhiteboardListener {
+    void messageReceived(ServerMessage message);
+
+    //Called once when the connection drops unexpectedly
+    void connectionLost(String reason);
+}
@@ -1,34 +1,111 @@
 package main;
 
+import java.awt.Rectangle;
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 //Luis Mauboy - 1684115
 public class WhiteboardServer {
     private static final int DEFAULT_PORT = 1234;
-    private ServerSocket serverSocket;
-    private final UserManager userManager = new UserManager();
-    private final List<ShapeData> whiteboardState = Collections.synchronizedList(new ArrayList<>());
+    static final String DEFAULT_BOARD = "main"; //For clients that join without naming a board
+    private static final int CHAT_PAGE_SIZE = 50;
+    private static final long COMPACT_INTERVAL_SECONDS = 30;
+    private static final long STROKE_MERGE_INTERVAL_SECONDS = 2;
+    private static final long EVICT_INTERVAL_SECONDS = 10;
+    private static final long PING_INTERVAL_MILLIS = 2000;
+    private static final long STALL_MILLIS = 5000;             //Ping unanswered this long: stalled
+    private static final long STALL_DISCONNECT_MILLIS = 30_000; //And this long: dropped, long before TCP would notice
+    private static final long DEFAULT_IDLE_MINUTES = 10;    //Unused boards are hibernated after this
+    private static final long DEFAULT_BOARD_BUDGET_MB = 256; //Heap for loaded idle boards before LRU eviction
+    private static final long MAX_PLAYBACK_GAP_MILLIS = 2000; //Idle stretches are skipped during playback
+    private static final int BOARD_QUEUE_CAPACITY = 1 << 16;
+    private static final int MAX_BACKLOG = 100_000; //Live messages held for a client still receiving its snapshot
+    private static final int MAX_OUTBOUND = 100_000; //Messages queued for a client's writer; more and it is dropped
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000; //For a writer to send what was queued before a close
+    private static final int MAX_PENDING_JOINS = 512;     //Accepted but not yet live; more are turned away
+    private static final int MAX_SNAPSHOT_TRANSFERS = 4;  //Initial states streamed at once, the rest queue
+    private static final int MAX_QUEUED_EXPORTS = 4;      //Waiting behind the running export; more are refused
+    private static final long JOIN_WINDOW_MILLIS = 50;    //Joiners this close together share one snapshot
+    private static final int VIEWPORT_MARGIN_TILES = 1;   //Kept current around the viewport, so small pans need nothing
+    private static final int MAX_VIEWPORT_SIZE = 1 << 24; //Larger areas count as the whole board
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10_000;
+    private volatile ServerSocket serverSocket;
     private final ExecutorService threadPool = Executors.newCachedThreadPool();
-    private final Set<ClientHandler> clients = ConcurrentHashMap.newKeySet();
-    private boolean isRunning;
-    private String currentManager;
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(); //Saves, in request order
+    //PNG exports, apart from ioExecutor so a large one never holds up board loads and saves
+    private final ThreadPoolExecutor exports = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(MAX_QUEUED_EXPORTS));
+    private final ThreadPoolExecutor transfers = new ThreadPoolExecutor(MAX_SNAPSHOT_TRANSFERS, MAX_SNAPSHOT_TRANSFERS,
+            0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    private final AtomicInteger pendingJoins = new AtomicInteger();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    //Board changes, joins and leaves all run on one thread in queue order
+    private final MpscRingBuffer<BoardEvent> boardQueue = new MpscRingBuffer<>(BOARD_QUEUE_CAPACITY);
+    private final Thread boardThread = new Thread(this::runBoard, "board-actor");
+    private boolean boardRunning = true; //Board thread only
+    private final ServerMetrics metrics = new ServerMetrics();
+    private final BoardRegistry boards = new BoardRegistry(ioExecutor, this::submit, metrics);
+    private volatile boolean isRunning;
+    private SessionRecorder recorder; //Null unless recording
+
+    //Persists every board operation under dir/<board>; call before start
+    public void enableHistory(File dir) {
+        boards.enableHistory(dir);
+    }
+
+    //Writes boards unused for idleMillis, or over the memory budget, to dir; call before start
+    public void enableHibernation(File dir, long idleMillis, long memoryBudget) throws IOException {
+        boards.enableHibernation(dir, idleMillis, memoryBudget);
+    }
+
+    //Logs every inbound message to file for SessionReplayer; call before start
+    public void enableRecording(File file) throws IOException {
+        recorder = new SessionRecorder(file);
+        boards.setHibernationListener(recorder::board);
+    }
 
     public void start(int port) throws IOException {
         serverSocket = new ServerSocket(port);
         isRunning = true;
-        System.out.println("Server started on port " + port);
+        metrics.setConnectedUsers(this::userCount);
+        metrics.setBoardShapes(this::shapeCount);
+        metrics.setBoardsLoaded(() -> boards.loaded().size());
+        metrics.setBoardMemory(boards::estimatedBytes);
+        metrics.setQueueDepth(boardQueue::size);
+        metrics.setPendingJoins(pendingJoins::get);
+        maintenance.scheduleWithFixedDelay(() -> submit(this::compactBoards),
+                COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(() -> submit(this::mergeStrokes),
+                STROKE_MERGE_INTERVAL_SECONDS, STROKE_MERGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(() -> submit(() -> boards.evict(System.currentTimeMillis())),
+                EVICT_INTERVAL_SECONDS, EVICT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        //Stalls are judged here rather than on the board thread, so nothing that slows it can hide one
+        maintenance.scheduleWithFixedDelay(() -> {
+            checkConnections();
+            submit(this::pingClients);
+        }, PING_INTERVAL_MILLIS, PING_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        boardThread.start();
+        System.out.println("Server started on port " + getPort());
 
         //Add shutdown hook
-        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
         
         while (isRunning) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clients.add(clientHandler);
-                threadPool.execute(clientHandler);
+                if (pendingJoins.incrementAndGet() > MAX_PENDING_JOINS) {
+                    pendingJoins.decrementAndGet();
+                    metrics.recordJoinRejected();
+                    threadPool.execute(() -> reject(clientSocket));
+                    continue;
+                }
+                clientSocket.setTcpNoDelay(true); //Writes are already batched per flush
+                clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS); //Until USER_JOIN arrives
+                threadPool.execute(new ClientHandler(clientSocket));
             } catch (SocketException e) {
                 if (isRunning) {
                     System.err.println("Server socket error: " + e.getMessage());
@@ -37,12 +114,158 @@ public class WhiteboardServer {
         }
     }
 
-    private class ClientHandler implements Runnable {
+    //Join storm: tell the client to retry instead of queueing it without bound
+    private void reject(Socket socket) {
+        try (socket) {
+            ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+            out.writeObject(ServerMessage.createError("The server is busy with other joins, please try again shortly"));
+            out.flush();
+        } catch (IOException e) {
+            //Client already gone
+        }
+    }
+
+    //Board thread: registers every queued joiner against one snapshot of the
+    //board, which is encoded once and streamed to each at most
+    //MAX_SNAPSHOT_TRANSFERS at a time
+    private void admitJoiners(Board board) {
+        List<ClientHandler> batch = board.joinBatch;
+        board.joinBatch = new ArrayList<>();
+        List<ClientHandler> admitted = new ArrayList<>(batch.size());
+        for (ClientHandler client : batch) {
+            //One bad joiner must not strand the rest of the batch, already taken off the board
+            try {
+                if (client.register()) {
+                    admitted.add(client);
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Could not admit " + client.username + ": " + e);
+                client.disconnect();
+            }
+        }
+        if (admitted.isEmpty()) return;
+        ShapeStore.Snapshot shapes = board.shapes.snapshot();
+        SharedSnapshot whole = new SharedSnapshot(shapes, shapes.size());
+        ServerMessage.ChatPage chat = board.chat.latest(CHAT_PAGE_SIZE);
+        ServerMessage.UserList users = board.users.snapshot();
+        for (ClientHandler client : admitted) {
+            int ahead = transfers.getQueue().size() + transfers.getActiveCount() - MAX_SNAPSHOT_TRANSFERS + 1;
+            if (ahead > 0) {
+                client.sendJoinStatus(ahead); //Before the transfer is queued, so it can't follow the board
+            }
+            //A joiner that sent its viewport gets only those tiles, encoded for it alone
+            SharedSnapshot snapshot = client.interest == null ? whole
+                    : new SharedSnapshot(board.shapes.inRegion(client.interest));
+            transfers.execute(() -> client.sendInitialState(snapshot, chat, users));
+        }
+    }
+
+    //One board snapshot shared by a join batch, encoded by the first transfer to need it
+    private static class SharedSnapshot {
+        final ShapeStore.Snapshot shapes; //Whole board, or null for a region
+        final List<ShapeData> region;
+        final int size;
+        private byte[] encoded;
+
+        SharedSnapshot(ShapeStore.Snapshot shapes, int size) {
+            this.shapes = shapes;
+            this.region = null;
+            this.size = size;
+        }
+
+        SharedSnapshot(List<ShapeData> region) {
+            this.shapes = null;
+            this.region = region;
+            this.size = region.size();
+        }
+
+        synchronized byte[] encoded() throws IOException {
+            if (encoded == null) {
+                encoded = shapes != null ? BoardFile.encode(shapes) : BoardFile.encode(region);
+            }
+            return encoded;
+        }
+    }
+
+    //Tiles kept current for a viewport (board coordinates), or null for the whole board
+    private static Rectangle interestOf(Rectangle viewport) {
+        if (viewport == null || viewport.width <= 0 || viewport.height <= 0
+                || Math.abs((long) viewport.x) + viewport.width > MAX_VIEWPORT_SIZE
+                || Math.abs((long) viewport.y) + viewport.height > MAX_VIEWPORT_SIZE) {
+            return null;
+        }
+        Rectangle tiles = SpatialGrid.rangeOf(viewport);
+        tiles.grow(VIEWPORT_MARGIN_TILES, VIEWPORT_MARGIN_TILES);
+        return tiles;
+    }
+
+    //A decoded client message, or a task that has to run in board order
+    private static class BoardEvent {
+        final ClientHandler sender;
+        final ServerMessage message;
+        final Runnable task;
+        final long payloadBytes;
+        final long enqueuedAt = System.nanoTime();
+
+        BoardEvent(ClientHandler sender, ServerMessage message, Runnable task, long payloadBytes) {
+            this.sender = sender;
+            this.message = message;
+            this.task = task;
+            this.payloadBytes = payloadBytes;
+        }
+    }
+
+    //Board thread: the only writer of board, users and client list, so every
+    //client observes the same total order of operations. It never touches a
+    //socket; messages go to each client's outbound queue.
+    private void runBoard() {
+        try {
+            while (boardRunning) {
+                BoardEvent event = boardQueue.take();
+                metrics.recordQueueDelay(System.nanoTime() - event.enqueuedAt);
+                try {
+                    if (event.task != null) {
+                        event.task.run();
+                    } else {
+                        event.sender.process(event);
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Board event failed: " + e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //Runs task on the board thread after everything queued before it
+    void submit(Runnable task) {
+        boardQueue.put(new BoardEvent(null, null, task, 0));
+    }
+
+    //Queued after a client's last message: its writer flushes and closes the socket
+    private static final Object CLOSE = new Object();
+
+    class ClientHandler implements Runnable {
         private final Socket socket;
-        private ObjectOutputStream out;
+        private ObjectOutputStream out;      //Writer thread only
+        //Messages for the writer thread, plus CLOSE and latches it counts down once what precedes them is flushed
+        private final BlockingQueue<Object> outbound = new LinkedBlockingQueue<>(MAX_OUTBOUND);
         private ObjectInputStream in;
+        private ServerMetrics.CountingOutputStream rawOut;
+        private ServerMetrics.CountingInputStream rawIn;
         private String username;
-        private boolean isApproved = false;
+        private String boardName;
+        private Board board;                 //Set on the board thread once the board is loaded
+        private Rectangle interest;          //Tiles this client is kept current on, null for all (board thread)
+        private volatile boolean closed = false;
+        private volatile long writingSince;  //nanoTime the writer's current write began, 0 when not writing
+        private List<ServerMessage> backlog; //Live messages held while the snapshot streams (guarded by outbound)
+        private Future<?> playback;          //History being streamed to this client (board thread)
+        private final long acceptedAt = System.nanoTime();
+        private final AtomicBoolean pending = new AtomicBoolean(true); //Counted in pendingJoins
+        private final int id = connectionIds.incrementAndGet(); //Names the connection in recordings
+        private final ConnectionStats stats = new ConnectionStats(); //Board thread
 
         public ClientHandler(Socket socket) {
             this.socket = socket;
@@ -51,76 +274,272 @@ public class WhiteboardServer {
         @Override
         public void run() {
             try {
-                out = new ObjectOutputStream(socket.getOutputStream());
-                in = new ObjectInputStream(socket.getInputStream());
+                rawOut = metrics.countOut(socket.getOutputStream());
+                rawIn = metrics.countIn(socket.getInputStream());
+                out = new ObjectOutputStream(rawOut);
+                threadPool.execute(this::writeMessages);
+                in = new ObjectInputStream(rawIn);
 
                 //First message must be username
                 ServerMessage usernameMsg = (ServerMessage) in.readObject();
                 if (usernameMsg.getType() != ServerMessage.MessageType.USER_JOIN) {
                     throw new ProtocolException("First message must be USER_JOIN");
                 }
-                this.username = (String) usernameMsg.getData();
-
-                //First user assigned as manager
-                userManager.addUser(username, userManager.getUserCount() == 1);
-                isApproved = true;
-                if (userManager.getUserCount() == 1) {
-                	currentManager = username;
-                    sendMessage(new ServerMessage(ServerMessage.MessageType.ASSIGN_MANAGER));
+                this.username = usernameMsg.getJoinUsername();
+                if (!UserManager.isValidName(username)) {
+                    refuse("Usernames cannot be empty or longer than 64 characters");
+                    throw new ProtocolException("Invalid username");
                 }
+                this.boardName = usernameMsg.getJoinBoard() != null ? usernameMsg.getJoinBoard() : DEFAULT_BOARD;
+                if (!BoardRegistry.isValidName(boardName)) {
+                    refuse("Board names use letters, digits, - and _ (at most 64)");
+                    throw new ProtocolException("Invalid board name: " + boardName);
+                }
+                interest = interestOf(usernameMsg.getJoinViewport());
+                if (recorder != null) recorder.join(id, usernameMsg);
+                socket.setSoTimeout(0);
+                submit(this::join);
 
-                //Send current state to new client
-                sendInitialState();
-                broadcastUserListUpdate();
-                
-
-                //Main message loop
-                while (isApproved && isRunning) {
+                //Main message loop: decode only, the board thread processes
+                while (isRunning && !closed) {
+                    long readBefore = rawIn.getCount();
                     ServerMessage message = (ServerMessage) in.readObject();
-                    processClientMessage(message);
+                    if (recorder != null && message.getType() != ServerMessage.MessageType.PONG) {
+                        recorder.message(id, message); //Before the board thread can change it
+                    }
+                    boardQueue.put(new BoardEvent(this, message, null, rawIn.getCount() - readBefore));
                 }
 
             } catch (Exception e) {
-                System.err.println("Client handling error: " + e.getMessage());
+                if (!closed) {
+                    System.err.println("Client handling error: " + e.getMessage());
+                }
             } finally {
-                cleanupClient();
+                if (recorder != null) recorder.leave(id);
+                joined();
+                if (isRunning) {
+                    submit(this::leave);
+                } else {
+                    disconnect();
+                }
+            }
+        }
+
+        //Board thread: opens the board, loading it from disk if it was
+        //hibernated, then joins its next batch. A lone joiner on an idle server
+        //goes straight in; otherwise the batch waits JOIN_WINDOW_MILLIS for company.
+        private void join() {
+            boards.open(boardName, opened -> {
+                if (opened == null) {
+                    refuse("Board " + boardName + " could not be loaded");
+                    return;
+                }
+                if (closed) return; //Left while the board was loading
+                board = opened;
+                board.joinBatch.add(this);
+                if (board.joinBatch.size() > 1) return;
+                if (transfers.getActiveCount() == 0 && transfers.getQueue().isEmpty()) {
+                    admitJoiners(board);
+                } else {
+                    Board batchBoard = board;
+                    maintenance.schedule(() -> submit(() -> admitJoiners(batchBoard)),
+                            JOIN_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+
+        //Board thread: registers the user; messages broadcast from here on wait
+        //in the backlog until the initial state has been sent
+        private boolean register() {
+            if (closed) return false;
+            boolean manager = board.users.getUserCount() == 0; //First user on the board is its manager
+            String previousManager = board.users.getManagerUsername();
+            long demoted = board.users.addUser(username, manager);
+            if (demoted < 0) {
+                refuse("The name " + username + " is already in use on this board");
+                return false;
+            }
+            if (manager) {
+                board.manager = username;
+                try {
+                    sendMessage(new ServerMessage(ServerMessage.MessageType.ASSIGN_MANAGER));
+                } catch (IOException e) {
+                    disconnect();
+                    return false;
+                }
+            }
+            synchronized (outbound) {
+                backlog = new ArrayList<>();
+            }
+            board.clients.add(this);
+            if (demoted > 0) {
+                broadcastPresence(board, previousManager, ServerMessage.Presence.Change.ROLE_CHANGED, false, demoted);
             }
+            //The joiner's own list already includes this version, so it skips it
+            broadcastPresence(board, username, ServerMessage.Presence.Change.JOINED, manager, board.users.getVersion());
+            return true;
         }
 
-        private void processClientMessage(ServerMessage message) throws IOException, ClassNotFoundException {
+        //No longer counted against MAX_PENDING_JOINS (live, or gone before that)
+        private void joined() {
+            if (pending.compareAndSet(true, false)) {
+                pendingJoins.decrementAndGet();
+            }
+        }
+
+        //Board thread
+        private void leave() {
+            cancelPlayback();
+            if (board == null) {
+                closeAfterSent(); //Never reached a board, but may have an error to read
+                return;
+            }
+            board.joinBatch.remove(this);
+            board.lastActive = System.currentTimeMillis();
+            if (!board.clients.remove(this)) {
+                closeAfterSent(); //Never joined
+                return;
+            }
+            //If manager disconnects
+            if (isRunning && username.equals(board.manager)) {
+                System.out.println("Manager of board " + board.name + " disconnected, closing it");
+                closeBoard(board);
+                closeAfterSent();
+                return;
+            }
+            //If other clients disconnect
+            if (board.users.removeUser(username)) {
+                broadcastPresence(board, username, ServerMessage.Presence.Change.LEFT, false, board.users.getVersion());
+            }
+            closeAfterSent();
+        }
+
+        //Board thread
+        private void process(BoardEvent queued) {
+            if (closed) return; //Kicked or failed, drop what it still had queued
+            ServerMessage message = queued.message;
+            stats.queued(System.nanoTime() - queued.enqueuedAt);
+            if (message.getType() == ServerMessage.MessageType.PONG) {
+                //Arrival on the reader thread ends the round trip, board-queue wait is counted apart
+                long roundTrip = stats.pong(message.getTimestamp(), queued.enqueuedAt);
+                if (roundTrip >= 0) metrics.recordRoundTrip(roundTrip);
+                return;
+            }
+            board.lastActive = System.currentTimeMillis();
+            WhiteboardEvents.MessageProcessed event = new WhiteboardEvents.MessageProcessed();
+            event.begin();
+            long begin = System.nanoTime();
+            try {
+                processClientMessage(message);
+            } catch (IOException e) {
+                System.err.println("Client handling error: " + e.getMessage());
+                disconnect();
+            }
+            metrics.recordMessage(message.getType(), System.nanoTime() - begin);
+            if (event.shouldCommit()) {
+                event.messageType = message.getType().name();
+                event.sender = username;
+                event.payloadBytes = queued.payloadBytes;
+                event.commit();
+            }
+        }
+
+        private void processClientMessage(ServerMessage message) throws IOException {
             switch (message.getType()) {
                 case SHAPE:
-                    whiteboardState.add(message.getShape());
-                    broadcastExcept(message, this);
+                    if (!Layers.isValidName(message.getShape().layer)) {
+                        throw new ProtocolException("Invalid layer name");
+                    }
+                    if (board.shapes.add(message.getShape())) {
+                        board.strokes.added(message.getShape(), System.currentTimeMillis());
+                        recordHistory(board, message);
+                        broadcastExcept(message, this, board.shapes.rangeOf(message.getShape().id));
+                    }
+                    break;
+                    
+                case DELETE_SHAPES:
+                    long[] deleted = board.shapes.delete(message.getShapeIds());
+                    if (deleted.length > 0) {
+                        ServerMessage delete = new ServerMessage(ServerMessage.MessageType.DELETE_SHAPES, deleted);
+                        recordHistory(board, delete);
+                        broadcastExcept(delete, this);
+                    }
+                    break;
+                    
+                case RESTORE_SHAPES:
+                    List<ShapeData> restored = board.shapes.restore(message.getShapes());
+                    if (!restored.isEmpty()) {
+                        ServerMessage restore = new ServerMessage(ServerMessage.MessageType.RESTORE_SHAPES, restored);
+                        Rectangle range = null;
+                        for (ShapeData shape : restored) {
+                            Rectangle shapeRange = board.shapes.rangeOf(shape.id);
+                            range = range == null ? shapeRange : range.union(shapeRange);
+                        }
+                        recordHistory(board, restore);
+                        broadcastExcept(restore, this, range);
+                    }
                     break;
                     
                 case CLEAR_CANVAS:
-                	whiteboardState.clear();
-                    broadcast(message);
+                	board.shapes.clear();
+                	board.strokes.clear();
+                	recordHistory(board, message);
+                    broadcast(board, message);
+                    break;
+                    
+                case LAYER_CLEAR:
+                    //Anyone may clear their own layer, only the manager a shared one
+                    String layer = message.getLayer();
+                    if (layer == null || !(board.users.isManager(username) || layer.equals(Layers.userLayer(username)))) {
+                        sendMessage(ServerMessage.createError("Only the manager can clear shared layers"));
+                    } else if (board.shapes.deleteLayer(layer).length > 0) {
+                        recordHistory(board, message);
+                        broadcast(board, message);
+                    }
                     break;
                     
                 case CHAT_MESSAGE:
-                    broadcast(message);
+                    board.chat.append(message.getChatMessage());
+                    broadcast(board, message);
+                    break;
+                    
+                case CHAT_HISTORY_REQUEST:
+                    sendMessage(new ServerMessage(ServerMessage.MessageType.CHAT_HISTORY,
+                            board.chat.before(message.getHistoryBefore(), CHAT_PAGE_SIZE)));
+                    break;
+                    
+                case USER_LIST_REQUEST:
+                    sendMessage(new ServerMessage(ServerMessage.MessageType.USER_LIST, board.users.snapshot()));
                     break;
                     
                 case KICK_NOTIFICATION:
-                	if (userManager.isManager(username)) {
+                	if (board.users.isManager(username)) {
                 		String userToKick = message.getKickedUsername();
                 		if (userToKick != null && !userToKick.equals(username)) {
-                			kickUser(userToKick);
+                			kickUser(board, userToKick);
                 		}
                 	}
                 	break;
                 	
                 case SAVE_REQUEST:
-                    if (userManager.isManager(username)) {
-                        saveWhiteboard((String) message.getData());
+                    if (board.users.isManager(username)) {
+                        saveWhiteboard((String) message.getData(), this);
+                    }
+                    break;
+                    
+                case EXPORT_REQUEST:
+                    if (board.users.isManager(username)) {
+                        exportWhiteboard(message.getExportRequest(), this);
                     }
                     break;
                     
+                case BOARD_DOWNLOAD:
+                    sendBoardDownload();
+                    break;
+                    
                 case LOAD_REQUEST:
-                	if (userManager.isManager(username)) {
-						loadWhiteboard((String) message.getData());
+                	if (board.users.isManager(username)) {
+						loadWhiteboard(board, (String) message.getData());
                 	}
                 	break;
                 	
@@ -134,48 +553,292 @@ public class WhiteboardServer {
                 	
                 case FILE_DATA:
                 	if (message.getShapes() != null) {
-                		whiteboardState.clear();
-                		whiteboardState.addAll(message.getShapes());
-                		broadcast(message);
+                		board.shapes.replaceAll(message.getShapes());
+                		board.strokes.clear();
+                		recordHistory(board, message);
+                		broadcastBoard(board, message);
                 	}
                 break;
+                
+                case PLAYBACK_REQUEST:
+                    if (board.history == null) {
+                        sendMessage(ServerMessage.createError("Board history is not enabled on this server"));
+                    } else {
+                        ServerMessage.PlaybackRequest request = message.getPlaybackRequest();
+                        cancelPlayback();
+                        playback = threadPool.submit(() -> playHistory(request));
+                    }
+                    break;
+                    
+                case VIEWPORT:
+                    updateViewport(message.getViewport());
+                    break;
+                    
+                case PLAYBACK_STOP:
+                    cancelPlayback();
+                    endPlayback();
+                    break;
+                    
+                case HISTORY_RESTORE:
+                    if (board.history != null && board.users.isManager(username)) {
+                        restoreHistory(board, (Long) message.getData());
+                    }
+                    break;
                 	
                 default:
                     throw new ProtocolException("Unsupported message type: " + message.getType());
             }
         }
 
-        private void sendInitialState() throws IOException {
-            //Send all existing shapes
-            synchronized (whiteboardState) {
-                for (ShapeData shape : whiteboardState) {
-                    sendMessage(new ServerMessage(ServerMessage.MessageType.SHAPE, shape));
+        //Transfer pool: queues the state captured by admitJoiners(), then the
+        //backlog, then goes live. The transfer slot is held until the writer
+        //has sent it all, so MAX_SNAPSHOT_TRANSFERS still bounds the streams.
+        private void sendInitialState(SharedSnapshot snapshot, ServerMessage.ChatPage chat, ServerMessage.UserList users) {
+            WhiteboardEvents.InitialState event = new WhiteboardEvents.InitialState();
+            event.begin();
+            long written = rawOut.getCount();
+            CountDownLatch sent = new CountDownLatch(1);
+            try {
+                ServerMessage shapes = new ServerMessage(ServerMessage.MessageType.BOARD_SNAPSHOT, snapshot.encoded());
+                synchronized (outbound) {
+                    //All shapes, encoded once for the whole batch, recent chat and the user list
+                    enqueue(shapes);
+                    enqueue(new ServerMessage(ServerMessage.MessageType.CHAT_HISTORY, chat));
+                    enqueue(new ServerMessage(ServerMessage.MessageType.USER_LIST, users));
+                    for (ServerMessage message : backlog) {
+                        enqueue(message);
+                    }
+                    backlog = null;
+                    enqueue(sent);
+                }
+                while (!sent.await(1, TimeUnit.SECONDS)) {
+                    if (closed) throw new IOException("Connection closed");
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                disconnect();
+                return;
+            } catch (IOException e) {
+                System.err.println("Error sending board to " + username + ": " + e.getMessage());
+                disconnect();
+                return;
+            } finally {
+                joined();
+            }
+            metrics.recordJoin(snapshot.size, System.nanoTime() - acceptedAt);
+            if (event.shouldCommit()) {
+                event.username = username;
+                event.shapes = snapshot.size;
+                event.payloadBytes = rawOut.getCount() - written;
+                event.commit();
             }
-            //Send current user list
-            sendMessage(new ServerMessage(ServerMessage.MessageType.USER_LIST, userManager.getUsers()));
         }
         
 
+        //Sends the board as it was at request.from, then its operations up to request.to
+        private void playHistory(ServerMessage.PlaybackRequest request) {
+            BoardHistory history = board.history;
+            try {
+                BoardHistory.Position position = history.stateAt(request.from);
+                sendMessage(new ServerMessage(ServerMessage.MessageType.PLAYBACK_FRAME,
+                        new ServerMessage(ServerMessage.MessageType.FILE_DATA, position.shapes, request.from)));
+                if (request.speed <= 0) return; //Seek only
+                long[] previous = {request.from};
+                history.replay(position.offset, request.from, request.to, (time, op) -> {
+                    long delay = (long) ((time - previous[0]) / request.speed);
+                    previous[0] = time;
+                    if (delay > 0) Thread.sleep(Math.min(delay, MAX_PLAYBACK_GAP_MILLIS));
+                    sendMessage(new ServerMessage(ServerMessage.MessageType.PLAYBACK_FRAME, op));
+                    return true;
+                });
+                if (!Thread.currentThread().isInterrupted()) {
+                    submit(() -> {
+                        try {
+                            endPlayback();
+                        } catch (IOException e) {
+                            disconnect();
+                        }
+                    });
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Playback failed for " + username + ": " + e.getMessage());
+            }
+        }
+        
+        private void cancelPlayback() {
+            if (playback != null) {
+                playback.cancel(true);
+                playback = null;
+            }
+        }
+        
+        //Board thread: returns the client to the live board
+        private void endPlayback() throws IOException {
+            sendMessage(new ServerMessage(ServerMessage.MessageType.PLAYBACK_END));
+            sendMessage(new ServerMessage(ServerMessage.MessageType.FILE_DATA, visibleShapes()));
+        }
+        
+        //Board thread: the whole board whatever the viewport, encoded on the
+        //transfer pool like a join snapshot
+        private void sendBoardDownload() {
+            ShapeStore.Snapshot snapshot = board.shapes.snapshot();
+            transfers.execute(() -> {
+                try {
+                    sendMessage(new ServerMessage(ServerMessage.MessageType.BOARD_DOWNLOAD, BoardFile.encode(snapshot)));
+                } catch (IOException e) {
+                    disconnect();
+                }
+            });
+        }
+        
+        //Board thread: the live shapes this client is kept current on
+        private List<ShapeData> visibleShapes() {
+            return interest == null ? board.shapes.snapshot().toList() : board.shapes.inRegion(interest);
+        }
+        
+        private boolean sees(Rectangle range) {
+            return interest == null || range == null || interest.intersects(range);
+        }
+        
+        //Board thread: sends the tiles that came into view; tiles that left it
+        //get no more updates and the client drops their shapes
+        private void updateViewport(Rectangle viewport) throws IOException {
+            Rectangle next = interestOf(viewport);
+            if (next == null || next.equals(interest)) return;
+            List<Rectangle> fresh = interest == null ? List.of() : SpatialGrid.subtract(next, interest);
+            List<ShapeData> shapes = fresh.isEmpty() ? List.of() : board.shapes.inRegion(fresh);
+            interest = next;
+            sendMessage(new ServerMessage(ServerMessage.MessageType.TILE_DATA,
+                    new ServerMessage.Tiles(next, fresh, shapes)));
+            metrics.recordViewport(shapes.size());
+        }
+
+        //Queues message for the writer thread; never blocks. Throws when the
+        //client is too far behind, and the caller drops it.
         public void sendMessage(ServerMessage message) throws IOException {
-            out.writeObject(message);
+            synchronized (outbound) {
+                if (closed) return;
+                if (backlog != null) {
+                    if (backlog.size() >= MAX_BACKLOG) {
+                        throw new IOException("Too far behind while joining");
+                    }
+                    backlog.add(message);
+                    return;
+                }
+                enqueue(message);
+            }
+        }
+        
+        private void enqueue(Object item) throws IOException {
+            if (!outbound.offer(item)) {
+                throw new IOException(MAX_OUTBOUND + " messages waiting to be sent");
+            }
+        }
+        
+        //Board thread: the round trip includes time queued behind earlier messages, as the client sees it
+        private void ping(long stamp) {
+            try {
+                sendDirect(new ServerMessage(ServerMessage.MessageType.PING, null, stamp));
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+        
+        //Board thread: queued past the backlog, the joiner has nothing else yet
+        private void sendJoinStatus(int ahead) {
+            try {
+                sendDirect(new ServerMessage(ServerMessage.MessageType.JOIN_STATUS, ahead));
+            } catch (IOException e) {
+                disconnect();
+            }
+        }
+        
+        //Sends the client an error and closes the connection once it is out
+        private void refuse(String reason) {
+            try {
+                sendDirect(ServerMessage.createError(reason));
+            } catch (IOException e) {
+                //Too far behind to tell it; closing is all that is left
+            }
+            closeAfterSent();
+        }
+        
+        //Queued past the backlog, for a client that has not joined yet
+        private void sendDirect(ServerMessage message) throws IOException {
+            synchronized (outbound) {
+                if (!closed) enqueue(message);
+            }
+        }
+        
+        //Writer thread: sends queued messages, flushing whenever the queue runs
+        //dry, so a client that stops reading blocks only this thread.
+        //writingSince shows how long the current write has been stuck.
+        private void writeMessages() {
+            try {
+                while (true) {
+                    Object item = outbound.take();
+                    do {
+                        if (item == CLOSE) {
+                            out.flush();
+                            return;
+                        }
+                        if (item instanceof CountDownLatch) {
+                            flushOut();
+                            ((CountDownLatch) item).countDown();
+                        } else {
+                            writingSince = System.nanoTime();
+                            out.writeObject(item);
+                            writingSince = 0;
+                        }
+                        item = outbound.poll();
+                    } while (item != null);
+                    flushOut();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error sending to " + username + ": " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                disconnect();
+            }
+        }
+        
+        private void flushOut() throws IOException {
+            writingSince = System.nanoTime();
             out.flush();
+            writingSince = 0;
         }
         
-        private void cleanupClient() {
-        	//If manager disconnects
-            if (username != null && username.equals(currentManager)) {
-            	System.out.println("Manager disconnected. Shutting down...");
-            	shutdown();
+        //How long the writer has been stuck on one write, which only a full socket buffer does
+        private long blockedFor(long now) {
+            long since = writingSince;
+            return since == 0 ? 0 : now - since;
+        }
+        
+        //Sends what is already queued, then closes; forced after CLOSE_TIMEOUT_MILLIS
+        private void closeAfterSent() {
+            synchronized (outbound) {
+                if (closed) return;
+                closed = true;
+                if (!outbound.offer(CLOSE)) {
+                    disconnect();
+                    return;
+                }
             }
-            //If other clients disconnect
-            if (username != null) {
-                userManager.removeUser(username);
-                broadcastUserListUpdate();
+            try {
+                maintenance.schedule(this::disconnect, CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //Shutting down; stop() closes what is left
             }
-            clients.remove(this);
+        }
+        
+        //Closes the socket now; the reader then queues leave() to clean up
+        private void disconnect() {
+            closed = true;
             try {
-            	if (socket != null && !socket.isClosed()) {
+            	if (!socket.isClosed()) {
             		socket.close();
             	}
             } catch (IOException e) {
@@ -184,110 +847,421 @@ public class WhiteboardServer {
         }
     }
     
-    private void broadcast(ServerMessage message) {
-    	synchronized(clients) {
-    		Iterator<ClientHandler> iterator = clients.iterator();
-    		while (iterator.hasNext()) {
-    			ClientHandler client = iterator.next();
-    			try {
-    				//Broadcast to everyone
-    				synchronized(client.out) {
-    					client.out.writeObject(message);
-    					client.out.flush();
-    				}
-    			} catch (IOException e) {
-    				System.err.println("Error broadcasting to " + client.username + ": " + e.getMessage());
-    				iterator.remove();
-    				client.cleanupClient();
-    			}
+    //Benchmarks: broadcasts on a loaded board by name
+    void broadcast(String boardName, ServerMessage message) {
+        Board board = boards.get(boardName);
+        if (board != null) {
+            broadcast(board, message);
+        }
+    }
+    
+    void broadcast(Board board, ServerMessage message) {
+    	broadcast(board, message, null);
+    }
+    
+    //range: tiles the change touches; clients viewing none of them are skipped
+    private void broadcast(Board board, ServerMessage message, Rectangle range) {
+    	WhiteboardEvents.Broadcast event = new WhiteboardEvents.Broadcast();
+    	event.begin();
+    	long begin = System.nanoTime();
+    	int recipients = 0;
+    	int filtered = 0;
+    	for (ClientHandler client : board.clients) {
+    		if (!client.sees(range)) {
+    			filtered++;
+    			continue;
     		}
+    		try {
+    			//Broadcast to everyone
+    			client.sendMessage(message);
+    			recipients++;
+    		} catch (IOException e) {
+    			System.err.println("Error broadcasting to " + client.username + ": " + e.getMessage());
+    			client.disconnect();
+    		}
+    	}
+    	metrics.recordFanout(recipients, filtered, System.nanoTime() - begin);
+    	if (event.shouldCommit()) {
+    		event.messageType = message.getType().name();
+    		event.recipients = recipients;
+    		event.commit();
     	}
     }
 
-    private synchronized void broadcastExcept(ServerMessage message, ClientHandler exclude) {
-        for (ClientHandler client : clients) {
-            if (client != exclude && client.isApproved) {
+    private void broadcastExcept(ServerMessage message, ClientHandler exclude) {
+        broadcastExcept(message, exclude, null);
+    }
+
+    //range: tiles the change touches; clients viewing none of them are skipped
+    private void broadcastExcept(ServerMessage message, ClientHandler exclude, Rectangle range) {
+        WhiteboardEvents.Broadcast event = new WhiteboardEvents.Broadcast();
+        event.begin();
+        long begin = System.nanoTime();
+        int recipients = 0;
+        int filtered = 0;
+        for (ClientHandler client : exclude.board.clients) {
+            if (client != exclude && !client.sees(range)) {
+                filtered++;
+            } else if (client != exclude) {
                 try {
                     client.sendMessage(message);
+                    recipients++;
                 } catch (IOException e) {
                     System.err.println("Error broadcasting to client: " + e.getMessage());
-                    clients.remove(client);
+                    client.disconnect();
                 }
             }
         }
+        metrics.recordFanout(recipients, filtered, System.nanoTime() - begin);
+        if (event.shouldCommit()) {
+            event.messageType = message.getType().name();
+            event.recipients = recipients;
+            event.senderExcluded = true;
+            event.commit();
+        }
     }
     
-    private void broadcastUserListUpdate() {
-        broadcast(new ServerMessage(ServerMessage.MessageType.USER_LIST, userManager.getUsers()));
-    }
-
-    private void kickUser(String usernameToKick) {
-        synchronized(clients) {
-        	Iterator<ClientHandler> iterator = clients.iterator();
-        	while (iterator.hasNext()) {
-        		ClientHandler client = iterator.next();
-        		if (client.username.equals(usernameToKick)) {
-        			try {
-        				//Notify client
-                        client.sendMessage(new ServerMessage(ServerMessage.MessageType.KICK_NOTIFICATION));
-                        
-                        //Close their connection
-                        client.cleanupClient();
-                        iterator.remove();
-                        
-                        //Update user list
-                        userManager.removeUser(usernameToKick);
-                        broadcastUserListUpdate();
-                        
-                        System.out.println("Kicked user: " + usernameToKick);
-                        return;
-        			} catch (IOException e) {
-                    	System.err.println("Error kicking user: " + e.getMessage());
-                    }
+    //Board thread; a replaced board, cut down to the tiles each client is watching
+    private void broadcastBoard(Board board, ServerMessage message) {
+        long begin = System.nanoTime();
+        int recipients = 0;
+        for (ClientHandler client : board.clients) {
+            try {
+                client.sendMessage(client.interest == null ? message
+                        : new ServerMessage(ServerMessage.MessageType.FILE_DATA, board.shapes.inRegion(client.interest)));
+                recipients++;
+            } catch (IOException e) {
+                System.err.println("Error broadcasting to " + client.username + ": " + e.getMessage());
+                client.disconnect();
+            }
+        }
+        metrics.recordFanout(recipients, System.nanoTime() - begin);
+    }
+
+    //Board thread; one small delta per change instead of the whole list to everyone
+    private void broadcastPresence(Board board, String user, ServerMessage.Presence.Change change, boolean manager, long version) {
+        broadcast(board, new ServerMessage(ServerMessage.MessageType.USER_PRESENCE,
+                new ServerMessage.Presence(version, user, change, manager)));
+    }
+
+    //Board thread; the user list is updated when the kicked client's leave() runs
+    private void kickUser(Board board, String usernameToKick) {
+        for (ClientHandler client : board.clients) {
+        	if (client.username.equals(usernameToKick)) {
+        		try {
+        			//Notify client
+        			client.sendMessage(new ServerMessage(ServerMessage.MessageType.KICK_NOTIFICATION));
+        		} catch (IOException e) {
+        			System.err.println("Error kicking user: " + e.getMessage());
         		}
+        		//Close their connection once the notice is out
+        		client.closeAfterSent();
+        		System.out.println("Kicked user: " + usernameToKick);
+        		return;
         	}
-        } System.err.println("User to kick not found: " + usernameToKick);	
+        }
+        System.err.println("User to kick not found: " + usernameToKick);
+    }
+
+    //Board thread: the manager left, so the board's other clients are sent away
+    //and the next joiner becomes its manager
+    private void closeBoard(Board board) {
+        broadcast(board, new ServerMessage(ServerMessage.MessageType.MANAGER_DISCONNECT));
+        for (ClientHandler client : board.clients) {
+            client.closeAfterSent();
+        }
+        for (ClientHandler client : board.joinBatch) {
+            client.closeAfterSent();
+        }
+        board.clients.clear();
+        board.joinBatch.clear();
+        board.users.clear();
+        board.manager = null;
+    }
+
+    //Board thread
+    private void compactBoards() {
+        for (Board board : boards.loaded()) {
+            board.shapes.compactIfNeeded();
+        }
+    }
+
+    //Board thread; replaces finished freehand strokes with one simplified polyline each
+    private void mergeStrokes() {
+        long now = System.currentTimeMillis();
+        for (Board board : boards.loaded()) {
+            for (ServerMessage.MergedShapes merge : board.strokes.compact(board.shapes, now)) {
+                if (board.shapes.merge(merge.merged, merge.removed)) {
+                    ServerMessage message = new ServerMessage(ServerMessage.MessageType.MERGE_SHAPES, merge);
+                    metrics.recordCompaction(merge.removed.length + 1, merge.merged.xs.length);
+                    recordHistory(board, message);
+                    //The merged bounds cover every segment, so this reaches all who saw one
+                    broadcast(board, message, board.shapes.rangeOf(merge.merged.id));
+                }
+            }
+        }
     }
 
-    private void saveWhiteboard(String filename) {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(filename))) {
-            oos.writeObject(whiteboardState);
-            broadcast(new ServerMessage(ServerMessage.MessageType.SAVE_RESPONSE, "Whiteboard saved successfully"));
+    //Maintenance thread: flags and eventually drops clients that stopped
+    //answering pings or whose writer is stuck on a full socket. Reads only
+    //what is safe off the board thread, so a blocked board thread can't hide a stall.
+    private void checkConnections() {
+        long now = System.nanoTime();
+        for (Board board : boards.loaded()) {
+            for (ClientHandler client : board.clients) {
+                long waiting = Math.max(client.stats.unansweredFor(now), client.blockedFor(now));
+                if (waiting > TimeUnit.MILLISECONDS.toNanos(STALL_DISCONNECT_MILLIS)) {
+                    System.err.println(client.username + " stopped answering or reading, disconnecting");
+                    metrics.recordStallDisconnect();
+                    client.disconnect();
+                } else if (waiting > TimeUnit.MILLISECONDS.toNanos(STALL_MILLIS) && client.stats.stall()) {
+                    metrics.recordStall();
+                }
+            }
+        }
+    }
+
+    //Board thread: pings every live client and sends each board's manager the figures
+    private void pingClients() {
+        long now = System.nanoTime();
+        Map<String, List<ServerMessage.Quality>> quality = new HashMap<>();
+        for (Board board : boards.loaded()) {
+            List<ServerMessage.Quality> reports = new ArrayList<>(board.clients.size());
+            ClientHandler manager = null;
+            for (ClientHandler client : board.clients) {
+                if (client.closed) continue;
+                long stamp = client.stats.ping(now);
+                if (stamp != 0) client.ping(stamp);
+                reports.add(client.stats.report(client.username));
+                if (client.username.equals(board.manager)) manager = client;
+            }
+            quality.put(board.name, reports);
+            if (manager != null) {
+                try {
+                    manager.sendMessage(new ServerMessage(ServerMessage.MessageType.CONNECTION_QUALITY, reports));
+                } catch (IOException e) {
+                    manager.disconnect();
+                }
+            }
+        }
+        metrics.setConnectionQuality(quality);
+    }
+
+    private int userCount() {
+        int count = 0;
+        for (Board board : boards.loaded()) {
+            count += board.users.getUserCount();
+        }
+        return count;
+    }
+
+    private int shapeCount() {
+        int count = 0;
+        for (Board board : boards.loaded()) {
+            count += board.shapes.size();
+        }
+        return count;
+    }
+
+    private void recordHistory(Board board, ServerMessage op) {
+        if (board.history != null) {
+            board.history.record(op, board.shapes);
+        }
+    }
+    
+    //Replaces the live board with its state at time, itself a new history entry
+    private void restoreHistory(Board board, long time) {
+        ioExecutor.execute(() -> {
+            try {
+                List<ShapeData> shapes = board.history.stateAt(time).shapes;
+                submit(() -> replaceBoard(board, shapes));
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("History restore failed: " + e.getMessage());
+            }
+        });
+    }
+    
+    //Board thread
+    private void replaceBoard(Board board, List<ShapeData> shapes) {
+        board.shapes.replaceAll(shapes);
+        board.strokes.clear();
+        ServerMessage message = new ServerMessage(ServerMessage.MessageType.FILE_DATA, shapes);
+        recordHistory(board, message);
+        broadcastBoard(board, message);
+    }
+    
+    //Snapshots the board and writes it on the I/O thread; the requester gets progress updates
+    private void saveWhiteboard(String filename, ClientHandler requester) {
+        Board board = requester.board;
+        ShapeStore.Snapshot snapshot = board.shapes.snapshot();
+        notifySave(requester, "Saving " + snapshot.size() + " shapes...");
+        ioExecutor.execute(() -> {
+            WhiteboardEvents.BoardFile event = new WhiteboardEvents.BoardFile();
+            event.begin();
+            try {
+                BoardFile.write(new File(filename), snapshot,
+                        (written, total) -> notifySave(requester, "Saving... " + (100L * written / total) + "%"));
+                event.succeeded = true;
+                submit(() -> broadcast(board, new ServerMessage(ServerMessage.MessageType.SAVE_RESPONSE, "Whiteboard saved successfully")));
+            } catch (IOException e) {
+                submit(() -> broadcast(board, ServerMessage.createError("Save failed: " + e.getMessage())));
+            }
+            if (event.shouldCommit()) {
+                event.operation = "save";
+                event.file = filename;
+                event.shapes = snapshot.size();
+                event.commit();
+            }
+        });
+    }
+    
+    //Renders a snapshot to PNG on the export thread, tiles drawn in parallel on the common pool
+    private void exportWhiteboard(ServerMessage.ExportRequest request, ClientHandler requester) {
+        if (exports.getQueue().remainingCapacity() == 0) {
+            notifySave(requester, "Export refused: " + MAX_QUEUED_EXPORTS + " exports are already waiting");
+            return;
+        }
+        ShapeStore.Snapshot snapshot = requester.board.shapes.snapshot();
+        notifySave(requester, "Exporting " + snapshot.size() + " shapes...");
+        exports.execute(() -> {
+            WhiteboardEvents.BoardFile event = new WhiteboardEvents.BoardFile();
+            event.begin();
+            long begin = System.nanoTime();
+            File file = new File(request.filename);
+            File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+            try {
+                Rectangle region = BoardExporter.boundsOf(snapshot);
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) {
+                    new BoardExporter(ForkJoinPool.commonPool()).export(snapshot, region, request.scale, out);
+                }
+                if (!temp.renameTo(file)) {
+                    file.delete();
+                    if (!temp.renameTo(file)) throw new IOException("Could not replace " + file);
+                }
+                event.succeeded = true;
+                notifySave(requester, String.format("Exported %s in %.1fs", file.getName(), (System.nanoTime() - begin) / 1e9));
+            } catch (IOException | RuntimeException e) {
+                temp.delete();
+                notifySave(requester, "Export failed: " + e.getMessage());
+            }
+            if (event.shouldCommit()) {
+                event.operation = "export";
+                event.file = request.filename;
+                event.shapes = snapshot.size();
+                event.commit();
+            }
+        });
+    }
+    
+    private void notifySave(ClientHandler requester, String status) {
+        try {
+            requester.sendMessage(new ServerMessage(ServerMessage.MessageType.SAVE_RESPONSE, status));
         } catch (IOException e) {
-        	broadcast(ServerMessage.createError("Save failed: " + e.getMessage()));
+            System.err.println("Error sending save progress: " + e.getMessage());
         }
     }
     
-    private void loadWhiteboard(String filename) throws ClassNotFoundException {
-    	try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(filename))) {
-    		@SuppressWarnings("unchecked")
-			List<ShapeData> shapes = (List<ShapeData>)ois.readObject();
-    		whiteboardState.clear();
-    		whiteboardState.addAll(shapes);
-    		broadcast(new ServerMessage(ServerMessage.MessageType.FILE_DATA, shapes));
-    	} catch (IOException e) {
-    		broadcast(ServerMessage.createError("Load failed: " + e.getMessage()));
-    	}
+    //Reads on the I/O thread, replaces the board back on the board thread
+    private void loadWhiteboard(Board board, String filename) {
+    	ioExecutor.execute(() -> {
+    		WhiteboardEvents.BoardFile event = new WhiteboardEvents.BoardFile();
+    		event.begin();
+    		int count = 0;
+    		try {
+    			List<ShapeData> shapes = BoardFile.read(new File(filename));
+    			count = shapes.size();
+    			submit(() -> replaceBoard(board, shapes));
+    			event.succeeded = true;
+    		} catch (IOException | ClassNotFoundException e) {
+    			submit(() -> broadcast(board, ServerMessage.createError("Load failed: " + e.getMessage())));
+    		}
+    		if (event.shouldCommit()) {
+    			event.operation = "load";
+    			event.file = filename;
+    			event.shapes = count;
+    			event.commit();
+    		}
+    	});
     }
     
-    private void shutdown() {
+    //Closes the server without exiting the JVM (also used by the shutdown hook)
+    void stop() {
+    	if (!isRunning) return;
     	isRunning = false;
+    	Runnable closeClients = () -> {
+    		for (Board board : boards.loaded()) {
+    			broadcast(board, new ServerMessage(ServerMessage.MessageType.SERVER_SHUTDOWN));
+    		}
+    		for (Board board : boards.loaded()) {
+    			for (ClientHandler client : board.clients) {
+    				client.closeAfterSent();
+    			}
+    			for (ClientHandler client : board.joinBatch) {
+    				client.closeAfterSent();
+    			}
+    		}
+    		boardRunning = false;
+    	};
     	try {
-    		broadcast(new ServerMessage(ServerMessage.MessageType.SERVER_SHUTDOWN));
+    		if (Thread.currentThread() == boardThread) {
+    			closeClients.run();
+    		} else {
+    			submit(closeClients);
+    			boardThread.join(2000);
+    		}
     		threadPool.shutdown();
+    		//Writers get a moment to send the notice, then stuck ones are cut off
+    		if (!threadPool.awaitTermination(2, TimeUnit.SECONDS)) {
+    			for (Board board : boards.loaded()) {
+    				for (ClientHandler client : board.clients) {
+    					client.disconnect();
+    				}
+    			}
+    		}
+    		transfers.shutdownNow();
+    		exports.shutdownNow();
+    		maintenance.shutdownNow();
+    		ioExecutor.shutdown(); //Lets running saves and hibernations finish
+    		ioExecutor.awaitTermination(5, TimeUnit.SECONDS);
+    		if (recorder != null) {
+    			for (Board board : boards.loaded()) {
+    				recorder.board(board.name, board.shapes.snapshot());
+    			}
+    			recorder.close();
+    		}
+    		boards.closeAll();
+    		metrics.close();
     		if (serverSocket != null) {
     			serverSocket.close();
     		}
-    		System.exit(0); //Force terminate all clients
     	} catch (IOException e) {
     		System.err.println("Shutdown error: " + e.getMessage());
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
     	}
     }
+    
+    //Port actually bound, useful when started on port 0
+    public int getPort() {
+    	ServerSocket socket = serverSocket;
+    	return socket != null ? socket.getLocalPort() : -1;
+    }
 
     public static void main(String[] args) {
         try {
             int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+            int statsPort = args.length > 1 ? Integer.parseInt(args[1]) : port + 1;
+            File historyDir = new File(args.length > 2 ? args[2] : "board-history");
+            File boardsDir = new File(args.length > 3 ? args[3] : "boards");
+            long idleMinutes = args.length > 4 ? Long.parseLong(args[4]) : DEFAULT_IDLE_MINUTES;
+            long budgetMB = args.length > 5 ? Long.parseLong(args[5]) : DEFAULT_BOARD_BUDGET_MB;
             WhiteboardServer server = new WhiteboardServer();
+            server.enableHistory(historyDir);
+            server.enableHibernation(boardsDir, TimeUnit.MINUTES.toMillis(idleMinutes), budgetMB << 20);
+            if (args.length > 6) {
+                server.enableRecording(new File(args[6])); //Session for SessionReplayer
+            }
+            server.metrics.export(statsPort);
             server.start(port);
         } catch (NumberFormatException e) {
             System.err.println("Invalid port number");